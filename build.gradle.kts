@@ -1,5 +1,6 @@
 plugins {
     id("java")
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "de.sirywell"
@@ -27,4 +28,15 @@ java {
 
 tasks.withType(JavaExec::class) {
     jvmArgs("--add-modules=jdk.incubator.vector")
-}
\ No newline at end of file
+}
+
+// the benchmarks are not part of the module, so the vector module must be added explicitly
+jmh {
+    jmhVersion = "1.37"
+    jvmArgsAppend.add("--add-modules=jdk.incubator.vector")
+}
+
+// neither are the tests, which use the vector API directly
+tasks.withType(JavaCompile::class).matching { it.name.contains("jmh", ignoreCase = true) || it.name == "compileTestJava" }.configureEach {
+    options.compilerArgs.add("--add-modules=jdk.incubator.vector")
+}
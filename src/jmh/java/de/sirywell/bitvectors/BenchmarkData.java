@@ -0,0 +1,126 @@
+package de.sirywell.bitvectors;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.SplittableRandom;
+
+/**
+ * Generates bit vectors and queries for the benchmarks.
+ */
+final class BenchmarkData {
+    static final long SEED = 42;
+    /**
+     * The number of queries generated per benchmark, the queries are repeated afterwards.
+     */
+    static final int QUERIES = 1 << 16;
+
+    private BenchmarkData() {
+
+    }
+
+    enum Density {
+        /**
+         * About 0.8% ones.
+         */
+        SPARSE,
+        /**
+         * About 50% ones.
+         */
+        HALF,
+        /**
+         * About 99.2% ones.
+         */
+        DENSE,
+        /**
+         * Alternating runs of 0s and 1s, each up to 4096 bits long.
+         */
+        CLUSTERED
+    }
+
+    enum Pattern {
+        RANDOM,
+        SEQUENTIAL
+    }
+
+    static void fill(MemorySegment segment, Density density) {
+        SplittableRandom random = new SplittableRandom(SEED);
+        long words = segment.byteSize() / Long.BYTES;
+        switch (density) {
+            case SPARSE -> {
+                for (long i = 0; i < words; i++) {
+                    long word = -1;
+                    for (int j = 0; j < 7; j++) {
+                        word &= random.nextLong();
+                    }
+                    segment.setAtIndex(ValueLayout.JAVA_LONG, i, word);
+                }
+            }
+            case HALF -> {
+                for (long i = 0; i < words; i++) {
+                    segment.setAtIndex(ValueLayout.JAVA_LONG, i, random.nextLong());
+                }
+            }
+            case DENSE -> {
+                for (long i = 0; i < words; i++) {
+                    long word = 0;
+                    for (int j = 0; j < 7; j++) {
+                        word |= random.nextLong();
+                    }
+                    segment.setAtIndex(ValueLayout.JAVA_LONG, i, word);
+                }
+            }
+            case CLUSTERED -> {
+                long bitSize = words * Long.SIZE;
+                boolean ones = random.nextBoolean();
+                for (long start = 0; start < bitSize; ones = !ones) {
+                    long end = Math.min(bitSize, start + random.nextLong(1, 4097));
+                    if (ones) {
+                        setBits(segment, start, end);
+                    }
+                    start = end;
+                }
+            }
+        }
+    }
+
+    private static void setBits(MemorySegment segment, long from, long to) {
+        // full bytes can be filled at once, only the bits at the borders need to be set one by one
+        long fullFrom = Math.min(to, Math.ceilDiv(from, Byte.SIZE) * Byte.SIZE);
+        long fullTo = Math.max(fullFrom, to / Byte.SIZE * Byte.SIZE);
+        for (long bit = from; bit < fullFrom; bit++) {
+            setBit(segment, bit);
+        }
+        segment.asSlice(fullFrom / Byte.SIZE, (fullTo - fullFrom) / Byte.SIZE).fill((byte) -1);
+        for (long bit = fullTo; bit < to; bit++) {
+            setBit(segment, bit);
+        }
+    }
+
+    private static void setBit(MemorySegment segment, long bit) {
+        long offset = bit / Byte.SIZE;
+        byte b = segment.get(ValueLayout.JAVA_BYTE, offset);
+        segment.set(ValueLayout.JAVA_BYTE, offset, (byte) (b | (1 << (bit & 7))));
+    }
+
+    /**
+     * {@return {@link #QUERIES} arguments in {@code [from, to)}, following the given pattern}
+     */
+    static long[] queries(Pattern pattern, long from, long to) {
+        long[] queries = new long[QUERIES];
+        switch (pattern) {
+            case RANDOM -> {
+                SplittableRandom random = new SplittableRandom(SEED);
+                for (int i = 0; i < QUERIES; i++) {
+                    queries[i] = random.nextLong(from, to);
+                }
+            }
+            case SEQUENTIAL -> {
+                double stride = (double) (to - from) / QUERIES;
+                for (int i = 0; i < QUERIES; i++) {
+                    queries[i] = from + (long) (i * stride);
+                }
+            }
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,122 @@
+package de.sirywell.bitvectors;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EfficientBitVectorBenchmark {
+
+    /**
+     * The size in bits, from L1 resident (4 KiB) to far larger than the LLC (512 MiB).
+     */
+    @Param({"32768", "8388608", "268435456", "4294967296"})
+    public long size;
+
+    @Param
+    public BenchmarkData.Density density;
+
+    @Param
+    public BenchmarkData.Pattern pattern;
+
+    private Arena arena;
+    private MemorySegment segment;
+    private EfficientBitVector bitVector;
+    private long[] indices;
+    private long[] ranks;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        arena = Arena.ofShared();
+        segment = arena.allocate(size / Byte.SIZE, 64);
+        BenchmarkData.fill(segment, density);
+        bitVector = EfficientBitVector.createEfficientBitVector(arena, segment, size);
+        indices = BenchmarkData.queries(pattern, 0, size);
+        long ones = bitVector.rank(size - 1, 1) + bitVector.access(size - 1);
+        ranks = BenchmarkData.queries(pattern, 1, Math.max(2, ones + 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        arena.close();
+    }
+
+    /**
+     * Reports the space overhead of the lookup data as additional result.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Overhead {
+        public double overheadBitsPerBit;
+
+        @Setup(Level.Iteration)
+        public void setup(EfficientBitVectorBenchmark benchmark) {
+            EfficientBitVector bitVector = benchmark.bitVector;
+            long lookupBytes = bitVector.memoryUsage() - bitVector.segment().byteSize();
+            overheadBitsPerBit = (double) (lookupBytes * Byte.SIZE) / bitVector.bitSize();
+        }
+    }
+
+    private int nextQuery() {
+        return next++ & (BenchmarkData.QUERIES - 1);
+    }
+
+    @Benchmark
+    public long rank(Overhead overhead) {
+        return bitVector.rank(indices[nextQuery()], 1);
+    }
+
+    @Benchmark
+    public long select(Overhead overhead) {
+        return bitVector.select(ranks[nextQuery()], 1);
+    }
+
+    @Benchmark
+    public int access(Overhead overhead) {
+        return bitVector.access(indices[nextQuery()]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public long buildSequential() {
+        try (Arena buildArena = Arena.ofShared()) {
+            return EfficientBitVector.createEfficientBitVector(buildArena, segment, size, 1).memoryUsage();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public long buildParallel() {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        try (Arena buildArena = Arena.ofShared()) {
+            return EfficientBitVector.createEfficientBitVector(buildArena, segment, size, parallelism).memoryUsage();
+        }
+    }
+}
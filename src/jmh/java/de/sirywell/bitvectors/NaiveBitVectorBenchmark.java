@@ -0,0 +1,82 @@
+package de.sirywell.bitvectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The baseline for {@link EfficientBitVectorBenchmark}. Only small sizes are used, as rank is linear
+ * and select is quadratic in the size. The naive bit vector has no overhead, and nothing to build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NaiveBitVectorBenchmark {
+
+    @Param({"4096", "32768"})
+    public long size;
+
+    @Param
+    public BenchmarkData.Density density;
+
+    @Param
+    public BenchmarkData.Pattern pattern;
+
+    private Arena arena;
+    private NaiveBitVector bitVector;
+    private long[] indices;
+    private long[] ranks;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        arena = Arena.ofShared();
+        MemorySegment segment = arena.allocate(size / Byte.SIZE, 64);
+        BenchmarkData.fill(segment, density);
+        bitVector = new NaiveBitVector(segment, size);
+        indices = BenchmarkData.queries(pattern, 0, size);
+        long ones = bitVector.rank(size - 1, 1) + bitVector.access(size - 1);
+        ranks = BenchmarkData.queries(pattern, 1, Math.max(2, ones + 1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        arena.close();
+    }
+
+    private int nextQuery() {
+        return next++ & (BenchmarkData.QUERIES - 1);
+    }
+
+    @Benchmark
+    public long rank() {
+        return bitVector.rank(indices[nextQuery()], 1);
+    }
+
+    @Benchmark
+    public long select() {
+        return bitVector.select(ranks[nextQuery()], 1);
+    }
+
+    @Benchmark
+    public int access() {
+        return bitVector.access(indices[nextQuery()]);
+    }
+}
@@ -0,0 +1,206 @@
+package de.sirywell.bitvectors;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static java.nio.ByteOrder.nativeOrder;
+
+/**
+ * The counting kernels used by {@link EfficientBitVector}, independent of its logical block size.
+ * There is a scalar kernel and vectorized kernels for 128, 256 and 512 bit vectors. A kernel is chosen once,
+ * by the {@code ads.kernel} system property: {@code scalar}, {@code 128}, {@code 256}, {@code 512},
+ * {@code preferred} (the default), which is the vectorized kernel of the preferred species of the hardware,
+ * or {@code calibrate}, which measures the kernels the hardware supports and picks the fastest.
+ */
+sealed interface BitCountKernel permits BitCountKernel.Scalar, BitCountKernel.Vectorized {
+    /**
+     * The kernel used by all bit vectors.
+     */
+    BitCountKernel SELECTED = select(System.getProperty("ads.kernel", "preferred"));
+
+    /**
+     * {@return the number of 1 bits in the bytes {@code [from, to)} of the segment}
+     * Bytes beyond the end of the segment count as 0.
+     */
+    long bitCount(MemorySegment segment, long from, long to);
+
+    /**
+     * {@return the sum of the unsigned bytes {@code [from, to)} of the segment}
+     * The sum must be less than {@code 65536}.
+     */
+    long sumBytes(MemorySegment segment, long from, long to);
+
+    /**
+     * {@return a short name of the kernel}
+     */
+    String name();
+
+    private static BitCountKernel select(String property) {
+        List<BitCountKernel> supported = supported();
+        String name = property.toLowerCase(Locale.ROOT);
+        return switch (name) {
+            case "preferred" -> supported.stream()
+                    .filter(kernel -> kernel.name().equals(String.valueOf(ByteVector.SPECIES_PREFERRED.vectorBitSize())))
+                    .findFirst()
+                    // e.g. if the hardware only supports 64 bit vectors
+                    .orElse(new Scalar());
+            case "calibrate" -> calibrate(supported);
+            default -> supported.stream()
+                    .filter(kernel -> kernel.name().equals(name))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("unknown or unsupported kernel " + property));
+        };
+    }
+
+    /**
+     * {@return the kernels whose vectors are not wider than the widest vector the hardware supports}
+     */
+    private static List<BitCountKernel> supported() {
+        int maxBits = ByteVector.SPECIES_MAX.vectorBitSize();
+        return List.of(
+                new Scalar(),
+                new Vectorized(ByteVector.SPECIES_128),
+                new Vectorized(ByteVector.SPECIES_256),
+                new Vectorized(ByteVector.SPECIES_512)
+        ).stream().filter(kernel -> !(kernel instanceof Vectorized(var species)) || species.vectorBitSize() <= maxBits).toList();
+    }
+
+    /**
+     * Measures the kernels on the access patterns of a bit vector: counting the bits of blocks and summing up
+     * parts of the block values. The kernel with the lowest time wins.
+     * <p/>
+     * Interpreted or C1-compiled vector code boxes its vectors and is much slower than the scalar kernel, so all
+     * kernels are first run often enough to get compiled by C2. Then, the kernels are measured round by round
+     * in turns, so none of them profits from running later. This takes a noticeable time, which is why the
+     * calibration is opt-in.
+     */
+    private static BitCountKernel calibrate(List<BitCountKernel> kernels) {
+        MemorySegment data = MemorySegment.ofArray(new Random(0).longs(1 << 10).toArray());
+        // each round calls each method of a kernel 256 times, so this exceeds the C2 compile thresholds by far
+        int warmUpRounds = 400;
+        int measuredRounds = 50;
+        for (BitCountKernel kernel : kernels) {
+            for (int round = 0; round < warmUpRounds; round++) {
+                calibrationRound(kernel, data);
+            }
+        }
+        long[] times = new long[kernels.size()];
+        Arrays.fill(times, Long.MAX_VALUE);
+        long expectedSum = -1;
+        for (int round = 0; round < measuredRounds; round++) {
+            for (int i = 0; i < kernels.size(); i++) {
+                long start = System.nanoTime();
+                long sum = calibrationRound(kernels.get(i), data);
+                times[i] = Math.min(times[i], System.nanoTime() - start);
+                // using the result makes sure the work isn't optimized away
+                if (expectedSum >= 0 && sum != expectedSum) {
+                    throw new AssertionError("kernel " + kernels.get(i).name() + " computed " + sum + " instead of " + expectedSum);
+                }
+                expectedSum = sum;
+            }
+        }
+        int best = 0;
+        for (int i = 1; i < kernels.size(); i++) {
+            if (times[i] < times[best]) {
+                best = i;
+            }
+        }
+        return kernels.get(best);
+    }
+
+    private static long calibrationRound(BitCountKernel kernel, MemorySegment data) {
+        long sum = 0;
+        for (long from = 0; from < data.byteSize(); from += 32) {
+            sum += kernel.bitCount(data, from, from + 32);
+            sum += kernel.sumBytes(data, 0, from / 32 % 256);
+        }
+        return sum;
+    }
+
+    record Scalar() implements BitCountKernel {
+        @Override
+        public long bitCount(MemorySegment segment, long from, long to) {
+            to = Math.min(to, segment.byteSize());
+            long ones = 0;
+            for (; from + Long.BYTES <= to; from += Long.BYTES) {
+                ones += Long.bitCount(segment.get(ValueLayout.JAVA_LONG_UNALIGNED, from));
+            }
+            for (; from < to; from++) {
+                ones += Integer.bitCount(segment.get(ValueLayout.JAVA_BYTE, from) & 0xFF);
+            }
+            return ones;
+        }
+
+        @Override
+        public long sumBytes(MemorySegment segment, long from, long to) {
+            long sum = 0;
+            for (; from + Long.BYTES <= to; from += Long.BYTES) {
+                sum += BitSupport.sumBytes(segment.get(ValueLayout.JAVA_LONG_UNALIGNED, from));
+            }
+            for (; from < to; from++) {
+                sum += segment.get(ValueLayout.JAVA_BYTE, from) & 0xFF;
+            }
+            return sum;
+        }
+
+        @Override
+        public String name() {
+            return "scalar";
+        }
+    }
+
+    record Vectorized(VectorSpecies<Byte> species) implements BitCountKernel {
+        @Override
+        public long bitCount(MemorySegment segment, long from, long to) {
+            long limit = Math.min(to, segment.byteSize());
+            long ones = 0;
+            for (; from < to; from += species.vectorByteSize()) {
+                VectorMask<Byte> loadMask = species.indexInRange(from, limit);
+                ones += ByteVector.fromMemorySegment(species, segment, from, nativeOrder(), loadMask)
+                        .reinterpretAsLongs()
+                        .lanewise(VectorOperators.BIT_COUNT)
+                        .reduceLanes(VectorOperators.ADD);
+            }
+            return ones;
+        }
+
+        @Override
+        public long sumBytes(MemorySegment segment, long from, long to) {
+            ShortVector sum = (ShortVector) species.withLanes(short.class).zero();
+            for (; from < to; from += species.vectorByteSize()) {
+                VectorMask<Byte> loadMask = species.indexInRange(from, to);
+                ByteVector bytes = ByteVector.fromMemorySegment(species, segment, from, nativeOrder(), loadMask);
+                sum = sum.add(sumPairwise(bytes));
+            }
+            // the lanes may overflow when summed up, but the sum itself fits into 16 bits
+            return sum.reduceLanes(VectorOperators.ADD) & 0xFFFF;
+        }
+
+        private static ShortVector sumPairwise(ByteVector a) {
+            // a = [a0, a1, a2, a3, a4,     ...]
+            // ->
+            // b = [ a0s  ,  a2s  ,  a4s  , ...]
+            // +
+            // c = [ a1s  ,  a3s  ,  a5s  , ...]
+            // = result
+            ShortVector b = a.reinterpretAsShorts().and((short) 0xFF);
+            ShortVector c = a.reinterpretAsShorts().lanewise(VectorOperators.LSHR, 8).and((short) 0xFF);
+            return b.add(c);
+        }
+
+        @Override
+        public String name() {
+            return String.valueOf(species.vectorBitSize());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package de.sirywell.bitvectors;
+
+public final class BitSupport {
+
+    private BitSupport() {
+
+    }
+
+    /**
+     * {@return the position of the {@code n}th (0-based) set bit in {@code word}}
+     * The result is undefined if {@code word} has less than {@code n + 1} set bits.
+     */
+    public static int selectInWord(long word, int n) {
+        // expand deposits the single bit at the position of the nth set bit (PDEP on x86)
+        return Long.numberOfTrailingZeros(Long.expand(1L << n, word));
+    }
+
+    /**
+     * {@return the sum of the 8 unsigned bytes in {@code word}}
+     */
+    public static long sumBytes(long word) {
+        // sum up neighbouring bytes into 16-bit lanes first, so the multiplication can't overflow a lane
+        long pairs = (word & 0x00FF00FF00FF00FFL) + ((word >>> 8) & 0x00FF00FF00FF00FFL);
+        return (pairs * 0x0001000100010001L) >>> 48;
+    }
+}
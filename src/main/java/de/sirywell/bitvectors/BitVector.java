@@ -1,8 +1,12 @@
 package de.sirywell.bitvectors;
 
 import java.io.PrintStream;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.LongConsumer;
 
-public sealed interface BitVector permits EfficientBitVector, NaiveBitVector {
+public sealed interface BitVector permits DynamicBitVector, EfficientBitVector, EliasFanoBitVector, InterleavedBitVector, MeteredBitVector, NaiveBitVector, RrrBitVector, ShardedBitVector {
 
     long rank(long index, int bit);
 
@@ -10,6 +14,169 @@ public sealed interface BitVector permits EfficientBitVector, NaiveBitVector {
 
     int access(long index);
 
+    /**
+     * Computes {@link #rank(long, int)} for each of the {@code indices}.
+     * The result for {@code indices[i]} is stored in {@code out[i]}.
+     */
+    default void rankBatch(long[] indices, int bit, long[] out) {
+        rankBatch(indices, indices.length, bit, out);
+    }
+
+    /**
+     * Computes {@link #rank(long, int)} for the first {@code length} {@code indices}, so the arrays can be reused
+     * for batches of different sizes. The result for {@code indices[i]} is stored in {@code out[i]}.
+     */
+    default void rankBatch(long[] indices, int length, int bit, long[] out) {
+        for (int i = 0; i < length; i++) {
+            out[i] = rank(indices[i], bit);
+        }
+    }
+
+    /**
+     * Computes {@link #select(long, int)} for each of the {@code ranks}.
+     * The result for {@code ranks[i]} is stored in {@code out[i]}.
+     */
+    default void selectBatch(long[] ranks, int bit, long[] out) {
+        selectBatch(ranks, ranks.length, bit, out);
+    }
+
+    /**
+     * Computes {@link #select(long, int)} for the first {@code length} {@code ranks}.
+     * The result for {@code ranks[i]} is stored in {@code out[i]}.
+     */
+    default void selectBatch(long[] ranks, int length, int bit, long[] out) {
+        for (int i = 0; i < length; i++) {
+            out[i] = select(ranks[i], bit);
+        }
+    }
+
+    /**
+     * Computes {@link #access(long)} for each of the {@code indices}.
+     * The result for {@code indices[i]} is stored in {@code out[i]}.
+     */
+    default void accessBatch(long[] indices, long[] out) {
+        accessBatch(indices, indices.length, out);
+    }
+
+    /**
+     * Computes {@link #access(long)} for the first {@code length} {@code indices}.
+     * The result for {@code indices[i]} is stored in {@code out[i]}.
+     */
+    default void accessBatch(long[] indices, int length, long[] out) {
+        for (int i = 0; i < length; i++) {
+            out[i] = access(indices[i]);
+        }
+    }
+
+    /**
+     * {@return the number of occurrences of {@code bit} in {@code [from, to)}}
+     */
+    default long count(long from, long to, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        assert 0 <= from && from <= to && to <= bitSize() : "range must be in bounds";
+        if (from == to) {
+            return 0;
+        }
+        return rankUntil(to, bit) - rankUntil(from, bit);
+    }
+
+    /**
+     * {@return the index of the first occurrence of {@code bit} at or after {@code from}, or {@code -1} if there is none}
+     */
+    default long nextBit(long from, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        assert from >= 0 : "from must not be negative";
+        if (from >= bitSize()) {
+            return -1;
+        }
+        return select(rank(from, bit) + 1, bit);
+    }
+
+    /**
+     * {@return the index of the last occurrence of {@code bit} at or before {@code from}, or {@code -1} if there is none}
+     */
+    default long previousBit(long from, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        assert from < bitSize() : "from must be in bounds";
+        if (from < 0) {
+            return -1;
+        }
+        long occurrences = rankUntil(from + 1, bit);
+        return occurrences == 0 ? -1 : select(occurrences, bit);
+    }
+
+    /**
+     * {@return the number of occurrences of {@code bit} in {@code [0, index)}, where {@code index} may be bitSize}
+     */
+    private long rankUntil(long index, int bit) {
+        if (index < bitSize()) {
+            return rank(index, bit);
+        }
+        long last = bitSize() - 1;
+        return rank(last, bit) + (access(last) == bit ? 1 : 0);
+    }
+
+    /**
+     * @see #nextBit(long, int)
+     */
+    default long nextSetBit(long from) {
+        return nextBit(from, 1);
+    }
+
+    /**
+     * @see #nextBit(long, int)
+     */
+    default long nextClearBit(long from) {
+        return nextBit(from, 0);
+    }
+
+    /**
+     * @see #previousBit(long, int)
+     */
+    default long previousSetBit(long from) {
+        return previousBit(from, 1);
+    }
+
+    /**
+     * @see #previousBit(long, int)
+     */
+    default long previousClearBit(long from) {
+        return previousBit(from, 0);
+    }
+
+    /**
+     * Calls the action with the index of each {@code 1} bit, in ascending order.
+     */
+    default void forEachSetBit(LongConsumer action) {
+        for (long i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+            action.accept(i);
+        }
+    }
+
+    /**
+     * {@return an iterator over the indices of the {@code 1} bits, in ascending order}
+     */
+    default PrimitiveIterator.OfLong setBitIterator() {
+        return new PrimitiveIterator.OfLong() {
+            private long next = nextSetBit(0);
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public long nextLong() {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                long current = next;
+                next = nextSetBit(current + 1);
+                return current;
+            }
+        };
+    }
+
     long bitSize();
 
     /**
@@ -17,5 +184,13 @@ public sealed interface BitVector permits EfficientBitVector, NaiveBitVector {
      */
     long memoryUsage();
 
+    /**
+     * {@return the memory usage of the bit vector, broken down into its components}
+     * The bytes of all components sum up to {@link #memoryUsage()}.
+     */
+    default BitVectorStats stats() {
+        return new BitVectorStats(bitSize(), List.of(new BitVectorStats.Component("total", memoryUsage())));
+    }
+
     void print(PrintStream output);
 }
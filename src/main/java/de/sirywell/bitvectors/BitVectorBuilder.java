@@ -0,0 +1,207 @@
+package de.sirywell.bitvectors;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+
+/**
+ * Builds a bit vector from bits that are appended in a stream.
+ * The lookup data of each super block is built as soon as all of its bits are appended,
+ * so building requires just a single pass over the data, and the bits don't need to be staged beforehand.
+ * <p/>
+ * While building, the data is stored in buffers that grow as needed. When calling {@link #build()},
+ * the data and the lookup data are copied into exactly sized segments of the given arena.
+ * <p/>
+ * A builder is not thread-safe and can only be used to build a single bit vector.
+ */
+public final class BitVectorBuilder {
+    private static final long INITIAL_CAPACITY = EfficientBitVector.RANK_SUPER_BLOCK_SIZE; // in bits
+
+    private final Arena arena;
+    // this bitset is just used for simplicity, temporarily.
+    private final BitSet overflow = new BitSet(256);
+    private MemorySegment data;
+    private MemorySegment rankLookup;
+    private MemorySegment selectLookup;
+    private long capacity; // in bits
+    private long bitSize;
+    private long indexedSuperBlocks;
+    private long indexedOnes;
+    private boolean built;
+
+    /**
+     * Creates a builder that allocates the final bit vector in the given arena.
+     */
+    public BitVectorBuilder(Arena arena) {
+        this(arena, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Creates a builder that allocates the final bit vector in the given arena.
+     * If the number of bits is known in advance, passing it as {@code expectedBitSize} avoids growing the buffers.
+     */
+    public BitVectorBuilder(Arena arena, long expectedBitSize) {
+        if (expectedBitSize < 0) {
+            throw new IllegalArgumentException("expected bit size must not be negative: " + expectedBitSize);
+        }
+        this.arena = arena;
+        grow(Math.max(expectedBitSize, Long.SIZE));
+    }
+
+    /**
+     * Appends a single bit.
+     */
+    public BitVectorBuilder append(int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        return append(bit, 1);
+    }
+
+    /**
+     * Appends the lowest {@code width} bits of {@code bits}, starting with the lowest bit.
+     */
+    public BitVectorBuilder append(long bits, int width) {
+        if (width < 0 || width > Long.SIZE) {
+            throw new IllegalArgumentException("width must be between 0 and 64: " + width);
+        }
+        checkNotBuilt();
+        ensureCapacity(bitSize + width);
+        MemorySupport.setBits(data, bitSize, width, bits);
+        bitSize += width;
+        indexCompleteSuperBlocks();
+        return this;
+    }
+
+    /**
+     * Appends all bits of the words, starting with the lowest bit of the first word.
+     */
+    public BitVectorBuilder append(long[] words) {
+        return append(words, 0, words.length);
+    }
+
+    /**
+     * Appends all bits of the words in the range {@code [from, to)}, starting with the lowest bit of the first word.
+     */
+    public BitVectorBuilder append(long[] words, int from, int to) {
+        checkNotBuilt();
+        ensureCapacity(bitSize + (long) (to - from) * Long.SIZE);
+        if (bitSize % Long.SIZE == 0) {
+            // aligned, so we can copy the words directly
+            MemorySegment.copy(words, from, data, MemorySupport.WORD_LAYOUT, bitSize / Byte.SIZE, to - from);
+            bitSize += (long) (to - from) * Long.SIZE;
+            indexCompleteSuperBlocks();
+            return this;
+        }
+        for (int i = from; i < to; i++) {
+            append(words[i], Long.SIZE);
+        }
+        return this;
+    }
+
+    /**
+     * Appends all remaining bytes of the buffer, starting with the lowest bit of the first byte.
+     * The position of the buffer is moved to its limit.
+     */
+    public BitVectorBuilder append(ByteBuffer buffer) {
+        ByteBuffer littleEndian = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        checkNotBuilt();
+        ensureCapacity(bitSize + (long) littleEndian.remaining() * Byte.SIZE);
+        while (littleEndian.remaining() >= Long.BYTES) {
+            append(littleEndian.getLong(), Long.SIZE);
+        }
+        while (littleEndian.hasRemaining()) {
+            append(littleEndian.get(), Byte.SIZE);
+        }
+        buffer.position(buffer.limit());
+        return this;
+    }
+
+    /**
+     * Appends the first {@code length} bits of the bitset. Bits beyond the length of the bitset are 0.
+     */
+    public BitVectorBuilder append(BitSet bits, long length) {
+        long[] words = bits.toLongArray();
+        long fullWords = Math.min(length / Long.SIZE, words.length);
+        append(words, 0, (int) fullWords);
+        long remaining = length - fullWords * Long.SIZE;
+        for (long i = fullWords; remaining > 0; i++, remaining -= Long.SIZE) {
+            long word = i < words.length ? words[(int) i] : 0;
+            append(word, (int) Math.min(remaining, Long.SIZE));
+        }
+        return this;
+    }
+
+    /**
+     * {@return the number of bits appended so far}
+     */
+    public long bitSize() {
+        return bitSize;
+    }
+
+    /**
+     * Indexes the remaining bits and creates the bit vector. The builder can't be used afterwards.
+     */
+    public BitVector build() {
+        checkNotBuilt();
+        built = true;
+        long nOfSuperBlocks = Math.ceilDiv(bitSize, EfficientBitVector.RANK_SUPER_BLOCK_SIZE);
+        if (indexedSuperBlocks < nOfSuperBlocks) {
+            // the last super block is incomplete, bits beyond bitSize are 0 already
+            indexedOnes += EfficientBitVector.indexSuperBlock(
+                    data, rankLookup, selectLookup, bitSize, indexedSuperBlocks++, indexedOnes, overflow
+            );
+        }
+        MemorySegment segment = arena.allocate(ValueLayout.JAVA_LONG, Math.ceilDiv(bitSize, Long.SIZE));
+        segment.copyFrom(data.asSlice(0, segment.byteSize()));
+        MemorySegment rank = EfficientBitVector.allocateRankLookup(arena, bitSize);
+        rank.copyFrom(rankLookup.asSlice(0, rank.byteSize()));
+        MemorySegment select = EfficientBitVector.allocateSelectLookup(arena, bitSize);
+        select.copyFrom(selectLookup.asSlice(0, select.byteSize()));
+        data = rankLookup = selectLookup = null;
+        return EfficientBitVector.finishLookups(segment, rank, select, bitSize, indexedOnes);
+    }
+
+    private void indexCompleteSuperBlocks() {
+        while ((indexedSuperBlocks + 1) * EfficientBitVector.RANK_SUPER_BLOCK_SIZE <= bitSize) {
+            indexedOnes += EfficientBitVector.indexSuperBlock(
+                    data, rankLookup, selectLookup, bitSize, indexedSuperBlocks++, indexedOnes, overflow
+            );
+        }
+    }
+
+    private void ensureCapacity(long bits) {
+        if (bits > capacity) {
+            grow(Math.max(bits, capacity * 2));
+        }
+    }
+
+    /**
+     * Replaces the buffers by larger ones, keeping their content.
+     * The buffers are allocated in an automatic arena, so old buffers are freed by the garbage collector.
+     */
+    private void grow(long bits) {
+        // whole super blocks, so indexing a super block never reads beyond the buffer
+        long newCapacity = Math.ceilDiv(bits, EfficientBitVector.RANK_SUPER_BLOCK_SIZE) * EfficientBitVector.RANK_SUPER_BLOCK_SIZE;
+        Arena buffers = Arena.ofAuto();
+        MemorySegment newData = buffers.allocate(newCapacity / Byte.SIZE, Long.BYTES);
+        MemorySegment newRankLookup = EfficientBitVector.allocateRankLookup(buffers, newCapacity);
+        MemorySegment newSelectLookup = EfficientBitVector.allocateSelectLookup(buffers, newCapacity);
+        if (data != null) {
+            newData.copyFrom(data);
+            newRankLookup.copyFrom(rankLookup);
+            newSelectLookup.copyFrom(selectLookup);
+        }
+        data = newData;
+        rankLookup = newRankLookup;
+        selectLookup = newSelectLookup;
+        capacity = newCapacity;
+    }
+
+    private void checkNotBuilt() {
+        if (built) {
+            throw new IllegalStateException("the bit vector has been built already");
+        }
+    }
+}
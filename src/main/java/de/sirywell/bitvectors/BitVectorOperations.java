@@ -0,0 +1,153 @@
+package de.sirywell.bitvectors;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.BitSet;
+
+import static de.sirywell.bitvectors.EfficientBitVector.ORDER;
+import static de.sirywell.bitvectors.EfficientBitVector.RANK_SUPER_BLOCK_SIZE;
+import static de.sirywell.bitvectors.SimdSupport.LONG_SPECIES;
+
+/**
+ * Boolean operations between bit vectors of the same size.
+ * The result is computed super block by super block, and the lookup data of each super block is built
+ * right after its bits are computed, while they are still in the cache.
+ * <p/>
+ * The operations are most efficient on bit vectors created by this library with an uncompressed layout.
+ * Other bit vectors are copied into a temporary uncompressed layout first.
+ */
+public final class BitVectorOperations {
+    private static final long WORDS_PER_SUPER_BLOCK = RANK_SUPER_BLOCK_SIZE / Long.SIZE;
+
+    private BitVectorOperations() {
+
+    }
+
+    /**
+     * {@return a bit vector with the bits of {@code left AND right}, allocated in the given arena}
+     */
+    public static BitVector and(Arena arena, BitVector left, BitVector right) {
+        return apply(arena, left, right, VectorOperators.AND);
+    }
+
+    /**
+     * {@return a bit vector with the bits of {@code left OR right}, allocated in the given arena}
+     */
+    public static BitVector or(Arena arena, BitVector left, BitVector right) {
+        return apply(arena, left, right, VectorOperators.OR);
+    }
+
+    /**
+     * {@return a bit vector with the bits of {@code left XOR right}, allocated in the given arena}
+     */
+    public static BitVector xor(Arena arena, BitVector left, BitVector right) {
+        return apply(arena, left, right, VectorOperators.XOR);
+    }
+
+    /**
+     * {@return a bit vector with the bits of {@code left AND NOT right}, allocated in the given arena}
+     */
+    public static BitVector andNot(Arena arena, BitVector left, BitVector right) {
+        return apply(arena, left, right, VectorOperators.AND_NOT);
+    }
+
+    /**
+     * {@return the number of 1s in {@code left AND right}} The result is not materialized.
+     */
+    public static long andCardinality(BitVector left, BitVector right) {
+        long bitSize = checkSameSize(left, right);
+        long nOfWords = Math.ceilDiv(bitSize, Long.SIZE);
+        try (Arena temporary = Arena.ofConfined()) {
+            MemorySegment leftData = wordsOf(left, nOfWords, temporary);
+            MemorySegment rightData = wordsOf(right, nOfWords, temporary);
+            LongVector sum = LongVector.zero(LONG_SPECIES);
+            for (long word = 0; word < nOfWords; word += LONG_SPECIES.length()) {
+                VectorMask<Long> mask = LONG_SPECIES.indexInRange(word, nOfWords);
+                LongVector and = load(leftData, word, mask).and(load(rightData, word, mask));
+                sum = sum.add(and.lanewise(VectorOperators.BIT_COUNT));
+            }
+            long cardinality = sum.reduceLanes(VectorOperators.ADD);
+            if (bitSize % Long.SIZE != 0) {
+                // bits beyond bitSize are not part of the bit vectors, even if they are not 0
+                long lastOffset = (nOfWords - 1) * Long.BYTES;
+                long last = leftData.get(MemorySupport.WORD_LAYOUT, lastOffset) & rightData.get(MemorySupport.WORD_LAYOUT, lastOffset);
+                cardinality -= Long.bitCount(last & ~((1L << bitSize) - 1));
+            }
+            return cardinality;
+        }
+    }
+
+    private static BitVector apply(Arena arena, BitVector left, BitVector right, VectorOperators.Binary operator) {
+        long bitSize = checkSameSize(left, right);
+        long nOfWords = Math.ceilDiv(bitSize, Long.SIZE);
+        long nOfSuperBlocks = Math.ceilDiv(bitSize, RANK_SUPER_BLOCK_SIZE);
+        MemorySegment result = arena.allocate(ValueLayout.JAVA_LONG, nOfWords);
+        MemorySegment rankLookup = EfficientBitVector.allocateRankLookup(arena, bitSize);
+        MemorySegment selectLookup = EfficientBitVector.allocateSelectLookup(arena, bitSize);
+        BitSet overflow = new BitSet(256);
+        long ones = 0;
+        try (Arena temporary = Arena.ofConfined()) {
+            MemorySegment leftData = wordsOf(left, nOfWords, temporary);
+            MemorySegment rightData = wordsOf(right, nOfWords, temporary);
+            for (long superBlock = 0; superBlock < nOfSuperBlocks; superBlock++) {
+                long end = Math.min(nOfWords, (superBlock + 1) * WORDS_PER_SUPER_BLOCK);
+                for (long word = superBlock * WORDS_PER_SUPER_BLOCK; word < end; word += LONG_SPECIES.length()) {
+                    VectorMask<Long> mask = LONG_SPECIES.indexInRange(word, end);
+                    load(leftData, word, mask)
+                            .lanewise(operator, load(rightData, word, mask))
+                            .intoMemorySegment(result, word * Long.BYTES, ORDER, mask);
+                }
+                if (end == nOfWords && bitSize % Long.SIZE != 0) {
+                    // make sure bits beyond bitSize are 0, e.g. after AND_NOT with garbage
+                    long lastOffset = (nOfWords - 1) * Long.BYTES;
+                    long last = result.get(MemorySupport.WORD_LAYOUT, lastOffset);
+                    result.set(MemorySupport.WORD_LAYOUT, lastOffset, last & ((1L << bitSize) - 1));
+                }
+                ones += EfficientBitVector.indexSuperBlock(
+                        result, rankLookup, selectLookup, bitSize, superBlock, ones, overflow
+                );
+            }
+        }
+        return EfficientBitVector.finishLookups(result, rankLookup, selectLookup, bitSize, ones);
+    }
+
+    private static LongVector load(MemorySegment data, long word, VectorMask<Long> mask) {
+        return LongVector.fromMemorySegment(LONG_SPECIES, data, word * Long.BYTES, ORDER, mask);
+    }
+
+    private static long checkSameSize(BitVector left, BitVector right) {
+        if (left.bitSize() != right.bitSize()) {
+            throw new IllegalArgumentException(
+                    "bit vectors must have the same size, but have " + left.bitSize() + " and " + right.bitSize()
+            );
+        }
+        return left.bitSize();
+    }
+
+    /**
+     * {@return a segment containing the bits of the bit vector in at least {@code nOfWords} words}
+     * If the bit vector doesn't store its bits that way already, they are copied into the temporary arena.
+     */
+    private static MemorySegment wordsOf(BitVector vector, long nOfWords, Arena temporary) {
+        if (vector instanceof EfficientBitVector efficient) {
+            MemorySegment segment = efficient.segment();
+            if (segment.byteSize() >= nOfWords * Long.BYTES) {
+                return segment;
+            }
+            MemorySegment copy = temporary.allocate(ValueLayout.JAVA_LONG, nOfWords);
+            copy.copyFrom(segment);
+            return copy;
+        }
+        MemorySegment copy = temporary.allocate(ValueLayout.JAVA_LONG, nOfWords);
+        vector.forEachSetBit(index -> {
+            long offset = index / Long.SIZE * Long.BYTES;
+            copy.set(MemorySupport.WORD_LAYOUT, offset, copy.get(MemorySupport.WORD_LAYOUT, offset) | (1L << index));
+        });
+        return copy;
+    }
+}
@@ -0,0 +1,47 @@
+package de.sirywell.bitvectors;
+
+import java.util.List;
+
+/**
+ * The memory usage of a bit vector, broken down into its components, e.g. the bits and the lookup data.
+ *
+ * @param bitSize    the number of bits the bit vector consists of
+ * @param components the components of the bit vector, in no particular order
+ */
+public record BitVectorStats(long bitSize, List<Component> components) {
+
+    public BitVectorStats {
+        components = List.copyOf(components);
+    }
+
+    /**
+     * A part of a bit vector.
+     *
+     * @param name  the name of the component, e.g. {@code rankLookup}
+     * @param bytes the number of bytes used by the component
+     */
+    public record Component(String name, long bytes) {
+    }
+
+    /**
+     * {@return the number of bytes used by all components}
+     */
+    public long totalBytes() {
+        long bytes = 0;
+        for (Component component : components) {
+            bytes += component.bytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * {@return the number of bits used in addition to the bits of the bit vector, per bit}
+     * This is negative for compressed bit vectors that use less space than the plain bits.
+     */
+    public double overheadBitsPerBit() {
+        if (bitSize == 0) {
+            return 0;
+        }
+        return (double) (totalBytes() * Byte.SIZE - bitSize) / bitSize;
+    }
+}
@@ -0,0 +1,514 @@
+package de.sirywell.bitvectors;
+
+import java.io.PrintStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * This is an implementation of a mutable bit vector, supporting {@link #set(long, int)},
+ * {@link #insert(long, int)} and {@link #delete(long)}.
+ * The bits are stored in leaves of up to 2048 bits, which are organized in a B-tree. Each node knows the number
+ * of bits and the number of {@code 1} bits in its subtree, so {@code rank}, {@code select} and {@code access}
+ * descend the tree by looking at the counts of at most 16 children per level, and finally scan a single leaf.
+ * Updates modify a single leaf and the counts on the path to it, splitting full nodes and merging underfull
+ * neighbours.
+ * <p/>
+ * For read-heavy phases, {@link #freeze(Arena)} converts the bit vector into a static bit vector with
+ * constant-time queries.
+ */
+public final class DynamicBitVector implements BitVector {
+    private static final int LEAF_WORDS = 32;
+    private static final int LEAF_BITS = LEAF_WORDS * Long.SIZE;
+    private static final int BRANCHING = 16;
+    /**
+     * Bulk loaded leaves are filled up to this many bits, so a few inserts don't immediately cause splits.
+     */
+    private static final int BULK_LEAF_BITS = LEAF_BITS * 3 / 4;
+
+    private Node root;
+
+    /**
+     * Creates an empty dynamic bit vector.
+     */
+    public DynamicBitVector() {
+        this.root = new Leaf();
+    }
+
+    private DynamicBitVector(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * {@return a dynamic bit vector containing the first {@code bitSize} bits of the segment}
+     */
+    public static DynamicBitVector createDynamicBitVector(MemorySegment segment, long bitSize) {
+        long nOfLeaves = Math.max(Math.ceilDiv(bitSize, BULK_LEAF_BITS), 1);
+        Node[] level = new Node[Math.toIntExact(nOfLeaves)];
+        for (int i = 0; i < level.length; i++) {
+            Leaf leaf = new Leaf();
+            long start = (long) i * BULK_LEAF_BITS;
+            int size = (int) Math.min(BULK_LEAF_BITS, bitSize - start);
+            for (int offset = 0; offset < size; offset += Long.SIZE) {
+                int width = Math.min(Long.SIZE, size - offset);
+                leaf.words[offset / Long.SIZE] = MemorySupport.getBits(segment, start + offset, width);
+            }
+            leaf.size = size;
+            leaf.recount();
+            level[i] = leaf;
+        }
+        // build the inner levels bottom up, with the same fill factor as the leaves
+        int fanOut = BRANCHING * 3 / 4;
+        while (level.length > 1) {
+            Node[] parents = new Node[Math.ceilDiv(level.length, fanOut)];
+            for (int i = 0; i < parents.length; i++) {
+                Inner inner = new Inner();
+                for (int c = i * fanOut; c < Math.min(level.length, (i + 1) * fanOut); c++) {
+                    inner.add(inner.count, level[c]);
+                }
+                parents[i] = inner;
+            }
+            level = parents;
+        }
+        return new DynamicBitVector(level[0]);
+    }
+
+    /**
+     * Sets the bit at the given index.
+     */
+    public void set(long index, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        Objects.checkIndex(index, bitSize());
+        root.set(index, bit);
+    }
+
+    /**
+     * Inserts a bit at the given index, moving all following bits one position further.
+     * An index equal to {@link #bitSize()} appends the bit.
+     */
+    public void insert(long index, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        Objects.checkIndex(index, bitSize() + 1);
+        Node sibling = root.insert(index, bit);
+        if (sibling != null) {
+            Inner newRoot = new Inner();
+            newRoot.add(0, root);
+            newRoot.add(1, sibling);
+            root = newRoot;
+        }
+    }
+
+    /**
+     * Deletes the bit at the given index, moving all following bits one position back.
+     *
+     * @return the deleted bit
+     */
+    public int delete(long index) {
+        Objects.checkIndex(index, bitSize());
+        int bit = root.delete(index);
+        if (root instanceof Inner inner && inner.count == 1) {
+            root = inner.children[0];
+        }
+        return bit;
+    }
+
+    /**
+     * Converts the current state of this bit vector into a static bit vector. Later changes to this
+     * bit vector are not reflected by the returned bit vector.
+     */
+    public BitVector freeze(Arena arena) {
+        long bitSize = bitSize();
+        // one additional word, as bits are written word-wise
+        MemorySegment segment = arena.allocate(ValueLayout.JAVA_LONG, Math.ceilDiv(bitSize, Long.SIZE) + 1);
+        root.copyTo(segment, 0);
+        return EfficientBitVector.createEfficientBitVector(arena, segment, bitSize);
+    }
+
+    @Override
+    public long rank(long index, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        assert index >= 0 && index < bitSize() : "index must be in bounds";
+        long position = 0;
+        long ones = 0;
+        Node node = root;
+        while (node instanceof Inner inner) {
+            int c = 0;
+            Node child;
+            while (index >= (child = inner.children[c]).size) {
+                index -= child.size;
+                position += child.size;
+                ones += child.ones;
+                c++;
+            }
+            node = child;
+        }
+        ones += ((Leaf) node).rank((int) index);
+        if (bit == 0) {
+            return position + index - ones;
+        }
+        return ones;
+    }
+
+    @Override
+    public long select(long rank, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        if (rank <= 0 || rank > root.occurrences(bit)) {
+            return -1;
+        }
+        long position = 0;
+        Node node = root;
+        while (node instanceof Inner inner) {
+            int c = 0;
+            Node child;
+            while (rank > (child = inner.children[c]).occurrences(bit)) {
+                rank -= child.occurrences(bit);
+                position += child.size;
+                c++;
+            }
+            node = child;
+        }
+        return position + ((Leaf) node).select((int) rank, bit);
+    }
+
+    @Override
+    public int access(long index) {
+        assert index >= 0 && index < bitSize() : "index must be in bounds";
+        Node node = root;
+        while (node instanceof Inner inner) {
+            int c = 0;
+            Node child;
+            while (index >= (child = inner.children[c]).size) {
+                index -= child.size;
+                c++;
+            }
+            node = child;
+        }
+        return ((Leaf) node).get((int) index);
+    }
+
+    @Override
+    public long bitSize() {
+        return root.size;
+    }
+
+    @Override
+    public long memoryUsage() {
+        return root.memoryUsage();
+    }
+
+    @Override
+    public void print(PrintStream output) {
+        long bitSize = bitSize();
+        for (long l = 0; l < bitSize; l++) {
+            output.print(access(l));
+        }
+    }
+
+    private abstract static sealed class Node permits Inner, Leaf {
+        long size;
+        long ones;
+
+        long occurrences(int bit) {
+            return bit == 1 ? ones : size - ones;
+        }
+
+        abstract void set(long index, int bit);
+
+        /**
+         * Inserts the bit, splitting this node if it is full.
+         *
+         * @return the new right sibling if this node was split, {@code null} otherwise
+         */
+        abstract Node insert(long index, int bit);
+
+        abstract int delete(long index);
+
+        /**
+         * {@return whether this node is too small to be kept alone, if possible}
+         */
+        abstract boolean underfull();
+
+        /**
+         * Moves all content of the right sibling into this node, if it fits.
+         *
+         * @return whether the content was moved
+         */
+        abstract boolean merge(Node right);
+
+        /**
+         * Writes the bits of this subtree into the segment, starting at the given bit index.
+         */
+        abstract void copyTo(MemorySegment segment, long bitIndex);
+
+        abstract long memoryUsage();
+    }
+
+    private static final class Inner extends Node {
+        // one additional slot, so a full node can take a new child before being split
+        final Node[] children = new Node[BRANCHING + 1];
+        int count;
+
+        void add(int c, Node child) {
+            System.arraycopy(children, c, children, c + 1, count - c);
+            children[c] = child;
+            count++;
+            size += child.size;
+            ones += child.ones;
+        }
+
+        void remove(int c) {
+            size -= children[c].size;
+            ones -= children[c].ones;
+            System.arraycopy(children, c + 1, children, c, count - c - 1);
+            children[--count] = null;
+        }
+
+        @Override
+        void set(long index, int bit) {
+            int c = 0;
+            while (index >= children[c].size) {
+                index -= children[c].size;
+                c++;
+            }
+            Node child = children[c];
+            ones -= child.ones;
+            child.set(index, bit);
+            ones += child.ones;
+        }
+
+        @Override
+        Node insert(long index, int bit) {
+            int c = 0;
+            // an index equal to the size of a child appends to that child, unless it is the last child
+            while (c < count - 1 && index >= children[c].size) {
+                index -= children[c].size;
+                c++;
+            }
+            Node child = children[c];
+            ones -= child.ones;
+            size -= child.size;
+            Node sibling = child.insert(index, bit);
+            ones += child.ones;
+            size += child.size;
+            if (sibling == null) {
+                return null;
+            }
+            add(c + 1, sibling);
+            if (count <= BRANCHING) {
+                return null;
+            }
+            Inner right = new Inner();
+            int half = count / 2;
+            for (int i = half; i < count; i++) {
+                right.add(right.count, children[i]);
+            }
+            while (count > half) {
+                remove(count - 1);
+            }
+            return right;
+        }
+
+        @Override
+        int delete(long index) {
+            int c = 0;
+            while (index >= children[c].size) {
+                index -= children[c].size;
+                c++;
+            }
+            Node child = children[c];
+            ones -= child.ones;
+            size -= child.size;
+            int bit = child.delete(index);
+            ones += child.ones;
+            size += child.size;
+            if (child.underfull() && count > 1) {
+                // merge with a neighbour; the counts of this node don't change by that
+                if (c + 1 < count && child.merge(children[c + 1])) {
+                    removeMerged(c + 1);
+                } else if (c > 0 && children[c - 1].merge(child)) {
+                    removeMerged(c);
+                }
+            }
+            return bit;
+        }
+
+        private void removeMerged(int c) {
+            System.arraycopy(children, c + 1, children, c, count - c - 1);
+            children[--count] = null;
+        }
+
+        @Override
+        boolean underfull() {
+            return count < BRANCHING / 4;
+        }
+
+        @Override
+        boolean merge(Node right) {
+            Inner inner = (Inner) right;
+            if (count + inner.count > BRANCHING) {
+                return false;
+            }
+            for (int i = 0; i < inner.count; i++) {
+                add(count, inner.children[i]);
+            }
+            return true;
+        }
+
+        @Override
+        void copyTo(MemorySegment segment, long bitIndex) {
+            for (int i = 0; i < count; i++) {
+                children[i].copyTo(segment, bitIndex);
+                bitIndex += children[i].size;
+            }
+        }
+
+        @Override
+        long memoryUsage() {
+            long usage = (long) children.length * Long.BYTES;
+            for (int i = 0; i < count; i++) {
+                usage += children[i].memoryUsage();
+            }
+            return usage;
+        }
+    }
+
+    private static final class Leaf extends Node {
+        // bits beyond size are always 0
+        final long[] words = new long[LEAF_WORDS];
+
+        void recount() {
+            long ones = 0;
+            for (long word : words) {
+                ones += Long.bitCount(word);
+            }
+            this.ones = ones;
+        }
+
+        int get(int index) {
+            return (int) (words[index / Long.SIZE] >>> index) & 1;
+        }
+
+        long rank(int index) {
+            int wordIndex = index / Long.SIZE;
+            long ones = 0;
+            for (int i = 0; i < wordIndex; i++) {
+                ones += Long.bitCount(words[i]);
+            }
+            // take the lowest bits only, rank is exclusive
+            return ones + Long.bitCount(words[wordIndex] & ((1L << index) - 1));
+        }
+
+        long select(int rank, int bit) {
+            for (int i = 0; ; i++) {
+                long word = bit == 1 ? words[i] : ~words[i];
+                int count = Long.bitCount(word);
+                if (rank <= count) {
+                    return (long) i * Long.SIZE + BitSupport.selectInWord(word, rank - 1);
+                }
+                rank -= count;
+            }
+        }
+
+        @Override
+        void set(long index, int bit) {
+            int wordIndex = (int) index / Long.SIZE;
+            long mask = 1L << index;
+            ones -= Long.bitCount(words[wordIndex] & mask);
+            words[wordIndex] = bit == 1 ? words[wordIndex] | mask : words[wordIndex] & ~mask;
+            ones += bit;
+        }
+
+        @Override
+        Node insert(long index, int bit) {
+            if (size == LEAF_BITS) {
+                Leaf right = split();
+                if (index > size) {
+                    right.insert(index - size, bit);
+                } else {
+                    insert(index, bit);
+                }
+                return right;
+            }
+            int wordIndex = (int) index / Long.SIZE;
+            // move the following words first, so their carry comes from the unmodified previous word
+            for (int i = (int) size / Long.SIZE; i > wordIndex; i--) {
+                words[i] = (words[i] << 1) | (words[i - 1] >>> (Long.SIZE - 1));
+            }
+            long word = words[wordIndex];
+            long lowMask = (1L << index) - 1;
+            words[wordIndex] = (word & lowMask) | ((word & ~lowMask) << 1) | ((long) bit << index);
+            size++;
+            ones += bit;
+            return null;
+        }
+
+        private Leaf split() {
+            Leaf right = new Leaf();
+            int half = LEAF_WORDS / 2;
+            System.arraycopy(words, half, right.words, 0, LEAF_WORDS - half);
+            Arrays.fill(words, half, LEAF_WORDS, 0);
+            right.size = size - (long) half * Long.SIZE;
+            size = (long) half * Long.SIZE;
+            right.recount();
+            ones -= right.ones;
+            return right;
+        }
+
+        @Override
+        int delete(long index) {
+            int wordIndex = (int) index / Long.SIZE;
+            int lastWord = (int) (size - 1) / Long.SIZE;
+            long word = words[wordIndex];
+            int bit = (int) (word >>> index) & 1;
+            long lowMask = (1L << index) - 1;
+            words[wordIndex] = (word & lowMask) | ((word >>> 1) & ~lowMask);
+            for (int i = wordIndex; i < lastWord; i++) {
+                words[i] |= words[i + 1] << (Long.SIZE - 1);
+                words[i + 1] >>>= 1;
+            }
+            size--;
+            ones -= bit;
+            return bit;
+        }
+
+        @Override
+        boolean underfull() {
+            return size < LEAF_BITS / 4;
+        }
+
+        @Override
+        boolean merge(Node right) {
+            Leaf leaf = (Leaf) right;
+            if (size + leaf.size > LEAF_BITS) {
+                return false;
+            }
+            for (int offset = 0; offset < leaf.size; offset += Long.SIZE) {
+                long word = leaf.words[offset / Long.SIZE];
+                long bitIndex = size + offset;
+                int shift = (int) (bitIndex % Long.SIZE);
+                words[(int) (bitIndex / Long.SIZE)] |= word << shift;
+                if (shift != 0 && bitIndex / Long.SIZE + 1 < LEAF_WORDS) {
+                    words[(int) (bitIndex / Long.SIZE) + 1] |= word >>> (Long.SIZE - shift);
+                }
+            }
+            size += leaf.size;
+            ones += leaf.ones;
+            return true;
+        }
+
+        @Override
+        void copyTo(MemorySegment segment, long bitIndex) {
+            for (int offset = 0; offset < size; offset += Long.SIZE) {
+                int width = (int) Math.min(Long.SIZE, size - offset);
+                MemorySupport.setBits(segment, bitIndex + offset, width, words[offset / Long.SIZE]);
+            }
+        }
+
+        @Override
+        long memoryUsage() {
+            return (long) words.length * Long.BYTES;
+        }
+    }
+}
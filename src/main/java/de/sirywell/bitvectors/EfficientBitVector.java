@@ -1,10 +1,7 @@
 package de.sirywell.bitvectors;
 
-import jdk.incubator.vector.ByteVector;
-import jdk.incubator.vector.LongVector;
-import jdk.incubator.vector.ShortVector;
-import jdk.incubator.vector.VectorMask;
-import jdk.incubator.vector.VectorOperators;
+import de.sirywell.bitvectors.jfr.BuildRankLookupEvent;
+import de.sirywell.bitvectors.jfr.BuildSelectLookupEvent;
 
 import java.io.PrintStream;
 import java.lang.foreign.Arena;
@@ -17,11 +14,15 @@ import java.lang.foreign.ValueLayout;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.VarHandle;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.function.LongBinaryOperator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
 
-import static de.sirywell.bitvectors.SimdSupport.BYTE_SPECIES;
-import static de.sirywell.bitvectors.SimdSupport.LONG_SPECIES;
 import static java.lang.invoke.MethodHandles.insertArguments;
 import static java.lang.invoke.MethodHandles.insertCoordinates;
 import static java.nio.ByteOrder.nativeOrder;
@@ -36,8 +37,10 @@ import static java.nio.ByteOrder.nativeOrder;
  * Additionally, we store a bitset of size 256 that denotes an overflow: We basically store 9-bit numbers,
  * but it's simpler to split up their layout into 8 + 1.
  * <p/>
- * Select is more tricky. We store level0 indexes in a list, for both 0 bits and 1 bits. These list entries
- * help us to select the relevant super block quickly.
+ * Select is more tricky. For both 0 bits and 1 bits, we sample the position of every 8192th occurrence.
+ * A sample and its successor bound the super blocks the requested occurrence can be in, which typically
+ * leaves just one or two candidates. Within the super block, we scan the block values (8 at a time),
+ * and finally select the bit within a single word of the block.
  *
  * @param segment      the actual bit vector data
  * @param rankLookup   the rank lookup data
@@ -103,12 +106,45 @@ record EfficientBitVector(
                     MemoryLayout.PathElement.sequenceElement(),
                     MemoryLayout.PathElement.groupElement(RANK_BLOCK_OVERFLOW)
             ), 0, 0);
-    private static final long RANK_SUPER_BLOCK_SIZE = 1 << 16; // in bits
-    private static final long RANK_BLOCK_SIZE = 1 << 8; // in bits
+    static final long RANK_SUPER_BLOCK_SIZE = 1 << 16; // in bits
+    static final long RANK_BLOCK_SIZE = 1 << 8; // in bits
+    private static final long RANK_BLOCKS_PER_SUPER_BLOCK = RANK_SUPER_BLOCK_SIZE / RANK_BLOCK_SIZE;
+    private static final long WORDS_PER_BLOCK = RANK_BLOCK_SIZE / Long.SIZE;
+    private static final long RANK_BLOCK_BYTES = RANK_BLOCK_SIZE / Byte.SIZE;
+    /**
+     * The kernel that counts bits in blocks and sums up block values. The logical block size above is independent
+     * of the vector size of the kernel.
+     */
+    private static final BitCountKernel KERNEL = BitCountKernel.SELECTED;
+    /**
+     * Every {@code SELECT_SAMPLE_RATE}th occurrence of a bit has its position stored in the select list.
+     */
+    static final long SELECT_SAMPLE_RATE = 1 << 13;
+    /**
+     * Bit vectors with at least this many bits get their lookup data built in parallel, see {@link #buildParallelism(long)}.
+     */
+    private static final long PARALLEL_BUILD_THRESHOLD = Long.getLong("ads.build.threshold", 1L << 26);
+    static final int BUILD_PARALLELISM = Integer.getInteger(
+            "ads.build.parallelism",
+            Runtime.getRuntime().availableProcessors()
+    );
+    private static final int PARALLEL_BUILD_CHUNKS_PER_THREAD = 4;
+    /**
+     * Batches with at least this many queries are sorted by super block before being executed.
+     * Smaller batches are unlikely to have multiple queries in the same super block.
+     */
+    private static final int SORTED_BATCH_THRESHOLD = 1 << 10;
+    private static final int BATCH_INDEX_BITS = 31;
+    private static final long BATCH_INDEX_MASK = (1L << BATCH_INDEX_BITS) - 1;
+    /**
+     * The keys of the last sorted batch of each thread, reused so sorting batches doesn't allocate.
+     */
+    private static final ThreadLocal<long[]> BATCH_KEYS = ThreadLocal.withInitial(() -> new long[0]);
 
     /**
      * The layout representing a single index of the select list. It represents 2 6-byte integers.
      * In the list, it means that 0 and 1 entries are interleaved.
+     * Each entry is the position of a sampled occurrence, or {@code bitSize} if there is no such occurrence.
      */
     private static final UnionLayout SELECT_CACHE_LAYOUT = MemoryLayout.unionLayout(
             MemoryLayout.structLayout(
@@ -147,55 +183,337 @@ record EfficientBitVector(
                     MemoryLayout.PathElement.groupElement("start")
             ), 0, 0);
 
-    public static final ShortVector ZERO = ShortVector.zero(SimdSupport.SHORT_SPECIES);
     public static final ByteOrder ORDER = nativeOrder();
 
+    /**
+     * Creates a bit vector, building the lookup data sequentially, so any arena can be used.
+     */
     static EfficientBitVector createEfficientBitVector(Arena arena, MemorySegment segment, long bitSize) {
+        return createEfficientBitVector(arena, segment, bitSize, 1);
+    }
+
+    /**
+     * {@return the parallelism to build the lookup data of a bit vector of the given size with}
+     * Only bit vectors with at least {@code ads.build.threshold} bits are built in parallel.
+     */
+    static int buildParallelism(long bitSize) {
+        return bitSize >= PARALLEL_BUILD_THRESHOLD ? BUILD_PARALLELISM : 1;
+    }
+
+    /**
+     * Creates a bit vector, building the lookup data with the given parallelism.
+     * If the parallelism is greater than 1, the {@code arena} and the {@code segment} must be accessible
+     * from other threads. The lookup data is the same, independent of the parallelism.
+     */
+    static EfficientBitVector createEfficientBitVector(Arena arena, MemorySegment segment, long bitSize, int parallelism) {
+        long nOfSuperBlocks = Math.ceilDiv(bitSize, RANK_SUPER_BLOCK_SIZE);
+        MemorySegment rankLookup = allocateRankLookup(arena, bitSize);
+        MemorySegment selectLookup = allocateSelectLookup(arena, bitSize);
+        long ones;
+        if (parallelism > 1 && nOfSuperBlocks > 1) {
+            ones = buildLookupsParallel(segment, rankLookup, selectLookup, bitSize, parallelism);
+        } else {
+            ones = buildLookups(segment, rankLookup, selectLookup, bitSize);
+        }
+        return finishLookups(segment, rankLookup, selectLookup, bitSize, ones);
+    }
+
+    /**
+     * {@return a segment large enough to store the rank lookup data of a bit vector of the given size}
+     */
+    static MemorySegment allocateRankLookup(Arena arena, long bitSize) {
+        return arena.allocate(rankLookupSize(bitSize), RANK_CACHE_LAYOUT.byteAlignment());
+    }
+
+    /**
+     * {@return a segment large enough to store the select lookup data of a bit vector of the given size}
+     */
+    static MemorySegment allocateSelectLookup(Arena arena, long bitSize) {
+        return arena.allocate(selectLookupSize(bitSize), SELECT_CACHE_LAYOUT.byteAlignment());
+    }
+
+    /**
+     * {@return the size in bytes of the rank lookup data of a bit vector of the given size}
+     */
+    static long rankLookupSize(long bitSize) {
+        return Math.ceilDiv(bitSize, RANK_SUPER_BLOCK_SIZE) * RANK_CACHE_LAYOUT.byteSize();
+    }
+
+    /**
+     * {@return the size in bytes of the select lookup data of a bit vector of the given size}
+     */
+    static long selectLookupSize(long bitSize) {
+        return (Math.ceilDiv(bitSize, SELECT_SAMPLE_RATE) + 1) * SELECT_CACHE_LAYOUT.byteSize();
+    }
+
+    /**
+     * Creates a bit vector from lookup data where all super blocks are indexed already.
+     * The lookup segments must have exactly the size required for {@code bitSize} bits.
+     *
+     * @param ones the number of 1s in the bit vector
+     */
+    static EfficientBitVector finishLookups(
+            MemorySegment segment,
+            MemorySegment rankLookup,
+            MemorySegment selectLookup,
+            long bitSize,
+            long ones
+    ) {
+        long nOfSelectEntries = selectLookup.byteSize() / SELECT_CACHE_LAYOUT.byteSize();
+        // mark all remaining entries as absent
+        for (long i = Math.ceilDiv(ones, SELECT_SAMPLE_RATE); i < nOfSelectEntries; i++) {
+            setSelect(1, i, selectLookup, bitSize);
+        }
+        for (long i = Math.ceilDiv(bitSize - ones, SELECT_SAMPLE_RATE); i < nOfSelectEntries; i++) {
+            setSelect(0, i, selectLookup, bitSize);
+        }
+        return new EfficientBitVector(segment, rankLookup, selectLookup, bitSize);
+    }
+
+    /**
+     * Builds the lookup data in a single pass over the bit vector.
+     * If the JFR events of the build are enabled, the rank and the select lookup are built in separate passes instead,
+     * so each event covers exactly one of them.
+     *
+     * @return the number of 1s in the bit vector
+     */
+    private static long buildLookups(
+            MemorySegment segment,
+            MemorySegment rankLookup,
+            MemorySegment selectLookup,
+            long bitSize
+    ) {
         long nOfSuperBlocks = Math.ceilDiv(bitSize, RANK_SUPER_BLOCK_SIZE);
-        MemorySegment rankLookup = arena.allocate(RANK_CACHE_LAYOUT, nOfSuperBlocks);
-        MemorySegment selectLookup = arena.allocate(SELECT_CACHE_LAYOUT, nOfSuperBlocks);
+        BuildRankLookupEvent rankEvent = new BuildRankLookupEvent();
+        BuildSelectLookupEvent selectEvent = new BuildSelectLookupEvent();
+        if (rankEvent.isEnabled() || selectEvent.isEnabled()) {
+            return buildLookupsSeparately(segment, rankLookup, selectLookup, bitSize, rankEvent, selectEvent);
+        }
         long onesSum = 0;
-        long selectOneIndex = 0;
-        long selectZeroIndex = 0;
         // this bitset is just used for simplicity, temporarily.
         // A long[7] would achieve the same.
         BitSet overflow = new BitSet(256);
         for (long superBlock = 0; superBlock < nOfSuperBlocks; superBlock++) {
-            // store the number of 1s up to this super block
+            onesSum += indexSuperBlock(segment, rankLookup, selectLookup, bitSize, superBlock, onesSum, overflow);
+        }
+        return onesSum;
+    }
+
+    /**
+     * Builds the rank lookup in a first pass, and the select lookup in a second pass, each recorded by its event.
+     *
+     * @return the number of 1s in the bit vector
+     */
+    private static long buildLookupsSeparately(
+            MemorySegment segment,
+            MemorySegment rankLookup,
+            MemorySegment selectLookup,
+            long bitSize,
+            BuildRankLookupEvent rankEvent,
+            BuildSelectLookupEvent selectEvent
+    ) {
+        long nOfSuperBlocks = Math.ceilDiv(bitSize, RANK_SUPER_BLOCK_SIZE);
+        rankEvent.begin();
+        long onesSum = 0;
+        BitSet overflow = new BitSet(256);
+        for (long superBlock = 0; superBlock < nOfSuperBlocks; superBlock++) {
             RANK_SUPER_BLOCK_VALUE_HANDLE.set(rankLookup, superBlock, onesSum);
-            for (
-                    long block = superBlock * RANK_SUPER_BLOCK_SIZE, local = 0;
-                    block < (superBlock + 1) * RANK_SUPER_BLOCK_SIZE;
-                    block += BYTE_SPECIES.vectorBitSize(), local++
-            ) {
-                long offset = block / 8;
-                VectorMask<Byte> loadMask = BYTE_SPECIES.indexInRange(offset, segment.byteSize());
-                ByteVector vector = ByteVector.fromMemorySegment(BYTE_SPECIES, segment, offset, ORDER, loadMask);
-                long unsignedBitCount = vector.reinterpretAsLongs()
-                        .lanewise(VectorOperators.BIT_COUNT)
-                        .reduceLanes(VectorOperators.ADD);
-                if (unsignedBitCount == 256) {
-                    overflow.set((int) local);
-                }
-                RANK_BLOCK_VALUE_HANDLE.set(rankLookup, superBlock, local, (byte) unsignedBitCount);
-                // check if we just "overflowed" one of the rank sizes
-                // if so, write superBlock index
-                long n = onesSum + unsignedBitCount;
-                if (onesSum / RANK_SUPER_BLOCK_SIZE != n / RANK_SUPER_BLOCK_SIZE) {
-                    setSelect(1, selectOneIndex, selectLookup, superBlock);
-                    selectOneIndex++;
+            onesSum += countSuperBlock(segment, rankLookup, superBlock, overflow);
+        }
+        rankEvent.superBlocks = nOfSuperBlocks;
+        rankEvent.parallelism = 1;
+        rankEvent.commit();
+        selectEvent.begin();
+        for (long superBlock = 0; superBlock < nOfSuperBlocks; superBlock++) {
+            long onesBefore = (long) RANK_SUPER_BLOCK_VALUE_HANDLE.get(rankLookup, superBlock);
+            long onesAfter = superBlock + 1 < nOfSuperBlocks
+                    ? (long) RANK_SUPER_BLOCK_VALUE_HANDLE.get(rankLookup, superBlock + 1)
+                    : onesSum;
+            sampleSuperBlock(segment, rankLookup, selectLookup, bitSize, superBlock, onesBefore, onesAfter - onesBefore);
+        }
+        selectEvent.superBlocks = nOfSuperBlocks;
+        selectEvent.parallelism = 1;
+        selectEvent.commit();
+        return onesSum;
+    }
+
+    /**
+     * Builds the lookup data of a single super block. All previous super blocks must be indexed already,
+     * and all bits of the super block must be present. Bits beyond {@code bitSize} must be 0.
+     *
+     * @param onesBefore the number of 1s up to the super block
+     * @param overflow   a cleared bitset of size 256 for temporary use
+     * @return the number of 1s in the super block
+     */
+    static long indexSuperBlock(
+            MemorySegment segment,
+            MemorySegment rankLookup,
+            MemorySegment selectLookup,
+            long bitSize,
+            long superBlock,
+            long onesBefore,
+            BitSet overflow
+    ) {
+        // store the number of 1s up to this super block
+        RANK_SUPER_BLOCK_VALUE_HANDLE.set(rankLookup, superBlock, onesBefore);
+        long ones = countSuperBlock(segment, rankLookup, superBlock, overflow);
+        sampleSuperBlock(segment, rankLookup, selectLookup, bitSize, superBlock, onesBefore, ones);
+        return ones;
+    }
+
+    /**
+     * Builds the lookup data in two parallel passes over chunks of super blocks.
+     * The first pass computes the block values and the number of 1s per super block and chunk.
+     * After calculating the prefix sums of the chunks, the second pass turns the number of 1s per super block
+     * into the number of 1s up to the super block and samples the select positions.
+     *
+     * @return the number of 1s in the bit vector
+     */
+    private static long buildLookupsParallel(
+            MemorySegment segment,
+            MemorySegment rankLookup,
+            MemorySegment selectLookup,
+            long bitSize,
+            int parallelism
+    ) {
+        long nOfSuperBlocks = Math.ceilDiv(bitSize, RANK_SUPER_BLOCK_SIZE);
+        // more chunks than threads to balance the load a bit
+        int nOfChunks = (int) Math.min(nOfSuperBlocks, (long) parallelism * PARALLEL_BUILD_CHUNKS_PER_THREAD);
+        long superBlocksPerChunk = Math.ceilDiv(nOfSuperBlocks, nOfChunks);
+        long[] chunkOnes = new long[nOfChunks];
+        try (ForkJoinPool pool = new ForkJoinPool(parallelism)) {
+            BuildRankLookupEvent rankEvent = new BuildRankLookupEvent();
+            rankEvent.begin();
+            forEachChunk(pool, nOfChunks, chunk -> {
+                BitSet overflow = new BitSet(256);
+                long from = chunk * superBlocksPerChunk;
+                long to = Math.min(from + superBlocksPerChunk, nOfSuperBlocks);
+                long onesSum = 0;
+                for (long superBlock = from; superBlock < to; superBlock++) {
+                    long ones = countSuperBlock(segment, rankLookup, superBlock, overflow);
+                    // temporarily store the number of 1s in this super block only
+                    RANK_SUPER_BLOCK_VALUE_HANDLE.set(rankLookup, superBlock, ones);
+                    onesSum += ones;
                 }
-                if ((block - onesSum) / RANK_SUPER_BLOCK_SIZE != (block - n) / RANK_SUPER_BLOCK_SIZE) {
-                    setSelect(0, selectZeroIndex, selectLookup, superBlock);
-                    selectZeroIndex++;
+                chunkOnes[chunk] = onesSum;
+            });
+            long[] chunkOnesBefore = new long[nOfChunks];
+            for (int chunk = 1; chunk < nOfChunks; chunk++) {
+                chunkOnesBefore[chunk] = chunkOnesBefore[chunk - 1] + chunkOnes[chunk - 1];
+            }
+            rankEvent.superBlocks = nOfSuperBlocks;
+            rankEvent.parallelism = parallelism;
+            rankEvent.commit();
+            BuildSelectLookupEvent selectEvent = new BuildSelectLookupEvent();
+            selectEvent.begin();
+            forEachChunk(pool, nOfChunks, chunk -> {
+                long from = chunk * superBlocksPerChunk;
+                long to = Math.min(from + superBlocksPerChunk, nOfSuperBlocks);
+                long onesSum = chunkOnesBefore[chunk];
+                for (long superBlock = from; superBlock < to; superBlock++) {
+                    long ones = (long) RANK_SUPER_BLOCK_VALUE_HANDLE.get(rankLookup, superBlock);
+                    RANK_SUPER_BLOCK_VALUE_HANDLE.set(rankLookup, superBlock, onesSum);
+                    sampleSuperBlock(segment, rankLookup, selectLookup, bitSize, superBlock, onesSum, ones);
+                    onesSum += ones;
                 }
-                onesSum = n;
+            });
+            selectEvent.superBlocks = nOfSuperBlocks;
+            selectEvent.parallelism = parallelism;
+            selectEvent.commit();
+            return chunkOnesBefore[nOfChunks - 1] + chunkOnes[nOfChunks - 1];
+        }
+    }
+
+    private static void forEachChunk(ForkJoinPool pool, int nOfChunks, IntConsumer action) {
+        List<ForkJoinTask<?>> tasks = IntStream.range(0, nOfChunks)
+                .<ForkJoinTask<?>>mapToObj(chunk -> ForkJoinTask.adapt(() -> action.accept(chunk)))
+                .toList();
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+    }
+
+    /**
+     * Computes and stores the block values of a super block.
+     *
+     * @return the number of 1s in the super block
+     */
+    private static long countSuperBlock(MemorySegment segment, MemorySegment rankLookup, long superBlock, BitSet overflow) {
+        long ones = 0;
+        long superBlockStart = superBlock * RANK_SUPER_BLOCK_SIZE / Byte.SIZE;
+        for (long local = 0; local < RANK_BLOCKS_PER_SUPER_BLOCK; local++) {
+            long offset = superBlockStart + local * RANK_BLOCK_BYTES;
+            long unsignedBitCount = KERNEL.bitCount(segment, offset, offset + RANK_BLOCK_BYTES);
+            if (unsignedBitCount == 256) {
+                overflow.set((int) local);
             }
-            flushOverflowBitset(overflow, superBlock, rankLookup);
+            RANK_BLOCK_VALUE_HANDLE.set(rankLookup, superBlock, local, (byte) unsignedBitCount);
+            ones += unsignedBitCount;
+        }
+        flushOverflowBitset(overflow, superBlock, rankLookup);
+        return ones;
+    }
+
+    /**
+     * Stores the positions of the sampled occurrences within a super block in the select lookup.
+     * The block values of the super block must be computed already.
+     */
+    private static void sampleSuperBlock(
+            MemorySegment segment,
+            MemorySegment rankLookup,
+            MemorySegment selectLookup,
+            long bitSize,
+            long superBlock,
+            long onesBefore,
+            long onesInSuperBlock
+    ) {
+        long superBlockStart = superBlock * RANK_SUPER_BLOCK_SIZE;
+        // the (1-based) ranks of the next occurrences we want to sample
+        long nextOneRank = nextSampledRank(onesBefore);
+        long nextZeroRank = nextSampledRank(superBlockStart - onesBefore);
+        long zerosInSuperBlock = Math.clamp(bitSize - superBlockStart, 0, RANK_SUPER_BLOCK_SIZE) - onesInSuperBlock;
+        if (onesBefore + onesInSuperBlock < nextOneRank
+            && superBlockStart - onesBefore + zerosInSuperBlock < nextZeroRank) {
+            return; // nothing to sample here
+        }
+        long valueOffset = valueOffsetStart(superBlock);
+        long overflowOffset = rankOverflowOffset(superBlock);
+        long onesSum = onesBefore;
+        for (long local = 0; local < RANK_BLOCKS_PER_SUPER_BLOCK; local++) {
+            long block = superBlockStart + local * RANK_BLOCK_SIZE;
+            long unsignedBitCount = blockOnes(rankLookup, valueOffset, overflowOffset, local);
+            // check if the next sampled occurrence is in this block
+            // if so, write its exact position
+            long n = onesSum + unsignedBitCount;
+            if (n >= nextOneRank) {
+                long position = selectInBlock(segment, block, nextOneRank - onesSum - 1, 1);
+                setSelect(1, (nextOneRank - 1) / SELECT_SAMPLE_RATE, selectLookup, position);
+                nextOneRank += SELECT_SAMPLE_RATE;
+            }
+            // bits beyond bitSize must not be counted as 0s
+            long zerosSum = Math.min(block, bitSize) - onesSum;
+            long zerosInBlock = Math.clamp(bitSize - block, 0, RANK_BLOCK_SIZE) - unsignedBitCount;
+            if (zerosSum + zerosInBlock >= nextZeroRank) {
+                long position = selectInBlock(segment, block, nextZeroRank - zerosSum - 1, 0);
+                setSelect(0, (nextZeroRank - 1) / SELECT_SAMPLE_RATE, selectLookup, position);
+                nextZeroRank += SELECT_SAMPLE_RATE;
+            }
+            onesSum = n;
         }
-        setSelect(1, selectOneIndex, selectLookup, nOfSuperBlocks - 1);
-        setSelect(0, selectZeroIndex, selectLookup, nOfSuperBlocks - 1);
-        return new EfficientBitVector(segment, rankLookup, selectLookup, bitSize);
+    }
+
+    /**
+     * {@return the (1-based) rank of the first sampled occurrence after {@code occurrencesBefore} occurrences}
+     */
+    private static long nextSampledRank(long occurrencesBefore) {
+        return Math.ceilDiv(occurrencesBefore, SELECT_SAMPLE_RATE) * SELECT_SAMPLE_RATE + 1;
+    }
+
+    /**
+     * {@return the number of 1s in a block, including the overflow}
+     */
+    private static long blockOnes(MemorySegment rankLookup, long valueOffset, long overflowOffset, long local) {
+        long overflowLong = rankLookup.get(ValueLayout.JAVA_LONG, overflowOffset + local / Long.SIZE * Long.BYTES);
+        long overflow = (overflowLong >>> (local % Long.SIZE)) & 1;
+        return Byte.toUnsignedLong(rankLookup.get(ValueLayout.JAVA_BYTE, valueOffset + local)) + overflow * RANK_BLOCK_SIZE;
     }
 
     private static void flushOverflowBitset(BitSet overflow, long superBlock, MemorySegment rankLookup) {
@@ -218,9 +536,11 @@ record EfficientBitVector(
         assert (bit | 1) == 1 : "bit must be 0 or 1";
         assert index >= 0 && index < segment.byteSize() * Byte.SIZE : "index must be in bounds";
         long superBlockIndex = index / RANK_SUPER_BLOCK_SIZE;
-        long remainingBitsInSuperBlock = index % RANK_SUPER_BLOCK_SIZE;
-        long onesBefore = superBlockOnes(superBlockIndex);
+        return rankInSuperBlock(index, bit, superBlockIndex, superBlockOnes(superBlockIndex));
+    }
 
+    private long rankInSuperBlock(long index, int bit, long superBlockIndex, long onesBefore) {
+        long remainingBitsInSuperBlock = index % RANK_SUPER_BLOCK_SIZE;
         onesBefore += sumBlocksInSuperBlockUntil(superBlockIndex, remainingBitsInSuperBlock);
         long targetByteIndex = index / Byte.SIZE; // flooring div
         onesBefore += countBitsInBlock(targetByteIndex, index / RANK_BLOCK_SIZE);
@@ -243,17 +563,7 @@ record EfficientBitVector(
      * Counts the bits in a block up to a specific byte.
      */
     private long countBitsInBlock(long lastIncludedByteIndex, long actualBlockPos) {
-        long blockIndex = actualBlockPos * BYTE_SPECIES.vectorByteSize();
-        VectorMask<Byte> loadMask = BYTE_SPECIES.indexInRange(blockIndex, lastIncludedByteIndex);
-        LongVector manyBits = ByteVector.fromMemorySegment(
-                BYTE_SPECIES,
-                segment,
-                blockIndex,
-                ORDER,
-                loadMask
-        ).reinterpretAsLongs();
-
-        return manyBits.lanewise(VectorOperators.BIT_COUNT).reduceLanes(VectorOperators.ADD);
+        return KERNEL.bitCount(segment, actualBlockPos * RANK_BLOCK_BYTES, lastIncludedByteIndex);
     }
 
     /**
@@ -262,41 +572,18 @@ record EfficientBitVector(
     private long sumBlocksInSuperBlockUntil(long superBlockIndex, long remainingBitsInSuperBlock) {
         long offset = valueOffsetStart(superBlockIndex);
         long blockBytesToProcess = remainingBitsInSuperBlock / RANK_BLOCK_SIZE; // exclusive bound
-        ShortVector h = ZERO;
-        for (long n = 0; n < blockBytesToProcess; n += BYTE_SPECIES.vectorByteSize()) {
-            ByteVector vector = byteVector(offset, n, offset + blockBytesToProcess);
-            h = h.add(sumPairwise(vector));
-        }
+        long sum = KERNEL.sumBytes(rankLookup, offset, offset + blockBytesToProcess);
+        // there are at most 4 overflow longs, so counting them with scalar code is fastest
         long overflowOffset = rankOverflowOffset(superBlockIndex);
         long longsToProcess = blockBytesToProcess / Long.SIZE;
-        long vectorBitMask = (1L << longsToProcess) - 1;
-        VectorMask<Long> fullLongs = VectorMask.fromLong(LONG_SPECIES, vectorBitMask);
-        LongVector overflowLongs = LongVector
-                .fromMemorySegment(LONG_SPECIES, rankLookup, overflowOffset, ORDER, fullLongs)
-                .lanewise(VectorOperators.BIT_COUNT);
+        long overflowCount = 0;
+        for (long i = 0; i < longsToProcess; i++) {
+            overflowCount += Long.bitCount(rankLookup.get(ValueLayout.JAVA_LONG, overflowOffset + i * Long.BYTES));
+        }
         long overflowBits = (1L << blockBytesToProcess % Long.SIZE) - 1;
         long value = rankLookup.get(ValueLayout.JAVA_LONG, overflowOffset + longsToProcess * Long.BYTES);
-        int trailing = Long.bitCount(overflowBits & value);
-        long overflow = (overflowLongs.reduceLanes(VectorOperators.ADD) + trailing) * 256;
-        return (h.reduceLanes(VectorOperators.ADD) & 0xFFFF) + overflow;
-    }
-
-    private ByteVector byteVector(long offset, long index, long upperBound) {
-        long fullIndex = offset + index;
-        VectorMask<Byte> loadMask = BYTE_SPECIES.indexInRange(fullIndex, upperBound);
-        return ByteVector.fromMemorySegment(BYTE_SPECIES, rankLookup, fullIndex, ORDER, loadMask);
-    }
-
-    private static ShortVector sumPairwise(ByteVector a) {
-        // a = [a0, a1, a2, a3, a4,     ...]
-        // ->
-        // b = [ a0s  ,  a2s  ,  a4s  , ...]
-        // +
-        // c = [ a1s  ,  a3s  ,  a5s  , ...]
-        // = result
-        ShortVector b = a.reinterpretAsShorts().and((short) 0xFF);
-        ShortVector c = a.reinterpretAsShorts().lanewise(VectorOperators.LSHR, 8).and((short) 0xFF);
-        return b.add(c);
+        overflowCount += Long.bitCount(overflowBits & value);
+        return sum + overflowCount * 256;
     }
 
     private static long valueOffsetStart(long superBlockIndex) {
@@ -310,49 +597,94 @@ record EfficientBitVector(
     @Override
     public long select(long rank, int bit) {
         assert (bit | 1) == 1 : "bit must be 0 or 1";
-        assert rank >= 0 && rank < segment.byteSize() * Byte.SIZE : "rank must be in bounds";
-
-        long selectIndex = rank / RANK_SUPER_BLOCK_SIZE;
-        long upperSuperBlockIndex = getSelect(bit, selectIndex, selectLookup) + 1;
-        long lowerSuperBlockIndex = selectIndex == 0 ? 0 : getSelect(bit, selectIndex - 1, selectLookup);
-        LongBinaryOperator toRank;
-        if (bit == 1) {
-            toRank = (ones, _) -> ones;
-        } else {
-            toRank = (ones, superBlockIndex) -> (superBlockIndex * RANK_SUPER_BLOCK_SIZE) - ones;
+        if (rank <= 0 || rank > bitSize) {
+            return -1;
+        }
+        long sampleIndex = (rank - 1) / SELECT_SAMPLE_RATE;
+        long sampledPosition = getSelect(bit, sampleIndex, selectLookup);
+        if (sampledPosition == bitSize) {
+            // there are less than rank occurrences of bit
+            return -1;
         }
+        // the occurrence is somewhere between this sample and the next one
+        long nextSampledPosition = Math.min(getSelect(bit, sampleIndex + 1, selectLookup), bitSize - 1);
+        long lowerSuperBlockIndex = sampledPosition / RANK_SUPER_BLOCK_SIZE;
+        long upperSuperBlockIndex = nextSampledPosition / RANK_SUPER_BLOCK_SIZE;
+        // find the last super block with less than rank occurrences before it
         while (lowerSuperBlockIndex < upperSuperBlockIndex) {
-            long c = lowerSuperBlockIndex + ((upperSuperBlockIndex - lowerSuperBlockIndex) >> 1);
-            if (toRank.applyAsLong(superBlockOnes(c), c) >= rank) {
-                upperSuperBlockIndex = c;
+            long c = lowerSuperBlockIndex + ((upperSuperBlockIndex - lowerSuperBlockIndex + 1) >> 1);
+            if (superBlockOccurrences(c, bit) < rank) {
+                lowerSuperBlockIndex = c;
             } else {
-                lowerSuperBlockIndex = c + 1;
+                upperSuperBlockIndex = c - 1;
             }
         }
-        if (lowerSuperBlockIndex > bitSize / RANK_SUPER_BLOCK_SIZE
-            || toRank.applyAsLong(superBlockOnes(lowerSuperBlockIndex), lowerSuperBlockIndex) >= rank) {
-            lowerSuperBlockIndex--;
+        long remaining = rank - superBlockOccurrences(lowerSuperBlockIndex, bit);
+        return selectInSuperBlock(lowerSuperBlockIndex, remaining, bit);
+    }
+
+    /**
+     * {@return the number of occurrences of {@code bit} before the given super block}
+     */
+    private long superBlockOccurrences(long superBlockIndex, int bit) {
+        long ones = superBlockOnes(superBlockIndex);
+        if (bit == 1) {
+            return ones;
         }
+        return superBlockIndex * RANK_SUPER_BLOCK_SIZE - ones;
+    }
 
-        // for simplicity, we just do binary search rank operations on this super block
-        long l = lowerSuperBlockIndex * RANK_SUPER_BLOCK_SIZE;
-        long h = Math.min((lowerSuperBlockIndex + 1) * RANK_SUPER_BLOCK_SIZE, bitSize); // exclusive
-        while (l < h) {
-            long c = l + ((h - l) >> 1);
-            long r = rank(c, bit);
-            if (r >= rank) {
-                h = c;
-            } else {
-                l = c + 1;
+    /**
+     * Finds the {@code remaining}th (1-based) occurrence of {@code bit} in the given super block.
+     * The block values are scanned 8 at a time, then block by block, and finally word by word.
+     */
+    private long selectInSuperBlock(long superBlockIndex, long remaining, int bit) {
+        long valueOffset = valueOffsetStart(superBlockIndex);
+        long overflowOffset = rankOverflowOffset(superBlockIndex);
+        for (long block = 0; block < RANK_BLOCKS_PER_SUPER_BLOCK; block += Long.BYTES) {
+            long values = rankLookup.get(ValueLayout.JAVA_LONG, valueOffset + block);
+            long overflowLong = rankLookup.get(ValueLayout.JAVA_LONG, overflowOffset + block / Long.SIZE * Long.BYTES);
+            long overflow = (overflowLong >>> (block % Long.SIZE)) & 0xFF;
+            long ones = BitSupport.sumBytes(values) + Long.bitCount(overflow) * RANK_BLOCK_SIZE;
+            long occurrences = bit == 1 ? ones : Long.BYTES * RANK_BLOCK_SIZE - ones;
+            if (occurrences < remaining) {
+                remaining -= occurrences;
+                continue;
+            }
+            for (long local = block; ; local++) {
+                long blockOnes = Byte.toUnsignedLong(rankLookup.get(ValueLayout.JAVA_BYTE, valueOffset + local))
+                                 + ((overflow >>> (local - block)) & 1) * RANK_BLOCK_SIZE;
+                long blockOccurrences = bit == 1 ? blockOnes : RANK_BLOCK_SIZE - blockOnes;
+                if (blockOccurrences >= remaining) {
+                    long blockStart = superBlockIndex * RANK_SUPER_BLOCK_SIZE + local * RANK_BLOCK_SIZE;
+                    long position = selectInBlock(segment, blockStart, remaining - 1, bit);
+                    // 0s might be found in the padding after the last bit
+                    return position < bitSize ? position : -1;
+                }
+                remaining -= blockOccurrences;
             }
         }
-        if (l == bitSize) {
-            return -1;
-        }
-        if (rank(l, bit) != rank) {
-            l--;
+        return -1;
+    }
+
+    /**
+     * Finds the {@code n}th (0-based) occurrence of {@code bit} in the block starting at {@code blockStart}.
+     * The caller must ensure that the block contains enough occurrences.
+     */
+    private static long selectInBlock(MemorySegment segment, long blockStart, long n, int bit) {
+        long firstWord = blockStart / Long.SIZE;
+        for (long wordIndex = firstWord; wordIndex < firstWord + RANK_BLOCK_SIZE / Long.SIZE; wordIndex++) {
+            long word = MemorySupport.getWord(segment, wordIndex);
+            if (bit == 0) {
+                word = ~word;
+            }
+            int count = Long.bitCount(word);
+            if (n < count) {
+                return wordIndex * Long.SIZE + BitSupport.selectInWord(word, (int) n);
+            }
+            n -= count;
         }
-        return l - 1;
+        throw new AssertionError("block does not contain enough occurrences");
     }
 
     private static long getSelect(int bit, long index, MemorySegment selectLookup) {
@@ -382,11 +714,231 @@ record EfficientBitVector(
         return (b >>> (index & 7)) & 1;
     }
 
+    @Override
+    public void rankBatch(long[] indices, int length, int bit, long[] out) {
+        if (length < SORTED_BATCH_THRESHOLD) {
+            BitVector.super.rankBatch(indices, length, bit, out);
+            return;
+        }
+        // queries in the same super block share the super block value
+        long currentSuperBlockIndex = -1;
+        long currentSuperBlockOnes = 0;
+        long[] keys = sortedBySuperBlock(indices, length);
+        for (int k = 0; k < length; k++) {
+            long key = keys[k];
+            int i = (int) (key & BATCH_INDEX_MASK);
+            long superBlockIndex = key >>> BATCH_INDEX_BITS;
+            if (superBlockIndex != currentSuperBlockIndex) {
+                currentSuperBlockIndex = superBlockIndex;
+                currentSuperBlockOnes = superBlockOnes(superBlockIndex);
+            }
+            out[i] = rankInSuperBlock(indices[i], bit, superBlockIndex, currentSuperBlockOnes);
+        }
+    }
+
+    @Override
+    public void selectBatch(long[] ranks, int length, int bit, long[] out) {
+        if (length < SORTED_BATCH_THRESHOLD) {
+            BitVector.super.selectBatch(ranks, length, bit, out);
+            return;
+        }
+        // close ranks share their select samples and usually their super block
+        long[] keys = sortedBySuperBlock(ranks, length);
+        for (int k = 0; k < length; k++) {
+            int i = (int) (keys[k] & BATCH_INDEX_MASK);
+            out[i] = select(ranks[i], bit);
+        }
+    }
+
+    @Override
+    public void accessBatch(long[] indices, int length, long[] out) {
+        if (length < SORTED_BATCH_THRESHOLD) {
+            BitVector.super.accessBatch(indices, length, out);
+            return;
+        }
+        long[] keys = sortedBySuperBlock(indices, length);
+        for (int k = 0; k < length; k++) {
+            int i = (int) (keys[k] & BATCH_INDEX_MASK);
+            out[i] = access(indices[i]);
+        }
+    }
+
+    /**
+     * Sorts the positions of the first {@code length} values by the super block the values fall into.
+     * This way, the lookup data and the bit vector data is accessed in ascending order, which makes
+     * the memory accesses more predictable and allows reusing cache lines between queries.
+     *
+     * @return the keys, sorted in the first {@code length} elements, consisting of the super block index in the
+     * upper bits and the position of the value in the lower {@value BATCH_INDEX_BITS} bits. The array is reused
+     * by the next batch of the same thread.
+     */
+    private static long[] sortedBySuperBlock(long[] values, int length) {
+        long[] keys = BATCH_KEYS.get();
+        if (keys.length < length) {
+            keys = new long[length];
+            BATCH_KEYS.set(keys);
+        }
+        for (int i = 0; i < length; i++) {
+            // negative values are invalid anyway, but they shouldn't mess up the key
+            long superBlockIndex = Math.max(0, values[i]) / RANK_SUPER_BLOCK_SIZE;
+            keys[i] = (superBlockIndex << BATCH_INDEX_BITS) | i;
+        }
+        Arrays.sort(keys, 0, length);
+        return keys;
+    }
+
+    @Override
+    public long nextBit(long from, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        assert from >= 0 : "from must not be negative";
+        if (from >= bitSize) {
+            return -1;
+        }
+        // searching for 0 bits is searching for 1 bits in the inverted words
+        long invert = bit - 1L;
+        long wordIndex = from / Long.SIZE;
+        long word = (MemorySupport.getWord(segment, wordIndex) ^ invert) & (-1L << from);
+        long block = from / RANK_BLOCK_SIZE;
+        while (word == 0) {
+            wordIndex++;
+            if (wordIndex % WORDS_PER_BLOCK == 0) {
+                // the remaining words of the block are empty, so skip to the next non-empty block
+                block = nextBlockWithOccurrences(block + 1, bit);
+                if (block < 0) {
+                    return -1;
+                }
+                wordIndex = block * WORDS_PER_BLOCK;
+            }
+            word = MemorySupport.getWord(segment, wordIndex) ^ invert;
+        }
+        long position = wordIndex * Long.SIZE + Long.numberOfTrailingZeros(word);
+        // bits beyond bitSize are 0, so they can only be found when searching for 0 bits
+        return position < bitSize ? position : -1;
+    }
+
+    @Override
+    public long previousBit(long from, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        assert from < bitSize : "from must be in bounds";
+        if (from < 0) {
+            return -1;
+        }
+        long invert = bit - 1L;
+        long wordIndex = from / Long.SIZE;
+        long word = (MemorySupport.getWord(segment, wordIndex) ^ invert) & (-1L >>> (Long.SIZE - 1 - from % Long.SIZE));
+        long block = from / RANK_BLOCK_SIZE;
+        while (word == 0) {
+            if (wordIndex % WORDS_PER_BLOCK == 0) {
+                // the previous words of the block are empty, so skip to the previous non-empty block
+                block = previousBlockWithOccurrences(block - 1, bit);
+                if (block < 0) {
+                    return -1;
+                }
+                wordIndex = (block + 1) * WORDS_PER_BLOCK;
+            }
+            wordIndex--;
+            word = MemorySupport.getWord(segment, wordIndex) ^ invert;
+        }
+        return wordIndex * Long.SIZE + Long.SIZE - 1 - Long.numberOfLeadingZeros(word);
+    }
+
+    @Override
+    public void forEachSetBit(LongConsumer action) {
+        long nOfSuperBlocks = Math.ceilDiv(bitSize, RANK_SUPER_BLOCK_SIZE);
+        for (long superBlock = 0; superBlock < nOfSuperBlocks; superBlock++) {
+            if (superBlock + 1 < nOfSuperBlocks && superBlockOnes(superBlock + 1) == superBlockOnes(superBlock)) {
+                continue; // no 1s in this super block
+            }
+            long valueOffset = valueOffsetStart(superBlock);
+            long overflowOffset = rankOverflowOffset(superBlock);
+            for (long local = 0; local < RANK_BLOCKS_PER_SUPER_BLOCK; local++) {
+                if (blockOnes(rankLookup, valueOffset, overflowOffset, local) == 0) {
+                    continue;
+                }
+                long firstWord = (superBlock * RANK_BLOCKS_PER_SUPER_BLOCK + local) * WORDS_PER_BLOCK;
+                for (long wordIndex = firstWord; wordIndex < firstWord + WORDS_PER_BLOCK; wordIndex++) {
+                    long word = MemorySupport.getWord(segment, wordIndex);
+                    while (word != 0) {
+                        long position = wordIndex * Long.SIZE + Long.numberOfTrailingZeros(word);
+                        if (position >= bitSize) {
+                            return;
+                        }
+                        action.accept(position);
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * {@return the first block at or after the given block that contains {@code bit}, or {@code -1} if there is none}
+     * Super blocks without occurrences are skipped entirely. The result may be the block after the last block
+     * when searching for 0 bits, as bits beyond {@code bitSize} count as 0 bits.
+     */
+    private long nextBlockWithOccurrences(long block, int bit) {
+        long nOfBlocks = Math.ceilDiv(bitSize, RANK_BLOCK_SIZE);
+        long nOfSuperBlocks = Math.ceilDiv(bitSize, RANK_SUPER_BLOCK_SIZE);
+        while (block < nOfBlocks) {
+            long superBlock = block / RANK_BLOCKS_PER_SUPER_BLOCK;
+            if (block % RANK_BLOCKS_PER_SUPER_BLOCK == 0 && superBlock + 1 < nOfSuperBlocks
+                && superBlockOccurrences(superBlock + 1, bit) == superBlockOccurrences(superBlock, bit)) {
+                block += RANK_BLOCKS_PER_SUPER_BLOCK;
+                continue;
+            }
+            if (blockOccurrences(block, bit) != 0) {
+                return block;
+            }
+            block++;
+        }
+        return -1;
+    }
+
+    /**
+     * {@return the last block at or before the given block that contains {@code bit}, or {@code -1} if there is none}
+     */
+    private long previousBlockWithOccurrences(long block, int bit) {
+        while (block >= 0) {
+            long superBlock = block / RANK_BLOCKS_PER_SUPER_BLOCK;
+            if (block % RANK_BLOCKS_PER_SUPER_BLOCK == RANK_BLOCKS_PER_SUPER_BLOCK - 1
+                && superBlockOccurrences(superBlock + 1, bit) == superBlockOccurrences(superBlock, bit)) {
+                // only full super blocks can be skipped, and they always have a successor entry
+                block -= RANK_BLOCKS_PER_SUPER_BLOCK;
+                continue;
+            }
+            if (blockOccurrences(block, bit) != 0) {
+                return block;
+            }
+            block--;
+        }
+        return -1;
+    }
+
+    private long blockOccurrences(long block, int bit) {
+        long superBlock = block / RANK_BLOCKS_PER_SUPER_BLOCK;
+        long ones = blockOnes(
+                rankLookup,
+                valueOffsetStart(superBlock),
+                rankOverflowOffset(superBlock),
+                block % RANK_BLOCKS_PER_SUPER_BLOCK
+        );
+        return bit == 1 ? ones : RANK_BLOCK_SIZE - ones;
+    }
+
     @Override
     public long memoryUsage() {
         return segment.byteSize() + rankLookup.byteSize() + selectLookup.byteSize();
     }
 
+    @Override
+    public BitVectorStats stats() {
+        return new BitVectorStats(bitSize, List.of(
+                new BitVectorStats.Component("segment", segment.byteSize()),
+                new BitVectorStats.Component("rankLookup", rankLookup.byteSize()),
+                new BitVectorStats.Component("selectLookup", selectLookup.byteSize())
+        ));
+    }
+
     @Override
     public void print(PrintStream output) {
         for (long l = 0; l < bitSize; l++) {
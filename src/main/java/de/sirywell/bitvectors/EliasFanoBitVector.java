@@ -0,0 +1,168 @@
+package de.sirywell.bitvectors;
+
+import java.io.PrintStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This is an implementation of a bit vector for sparse data, using the Elias-Fano encoding of the positions
+ * of its {@code 1} bits. Each of the {@code n} positions in a bit vector of size {@code u} is split into
+ * {@code l = floor(log2(u / n))} low bits and the remaining high bits. The low bits are stored as a packed array.
+ * The high bits of the {@code i}th position are stored as a {@code 1} bit at index {@code high + i}
+ * in a bit vector of {@code n + u / 2^l + 1} bits, which results in roughly {@code n * (2 + l)} bits in total.
+ * <p/>
+ * The high bits are stored in an {@link EfficientBitVector}, so {@code select} for {@code 1} bits is a single
+ * {@code select} on the high bits. For {@code rank}, we find the range of positions with the same high bits by
+ * two {@code select}s for {@code 0} bits on the high bits, and binary search their low bits.
+ * {@code select} for {@code 0} bits is a binary search over the positions.
+ *
+ * @param lowBits  the low bits of the positions, {@code lowWidth} bits each
+ * @param highBits the high bits of the positions, in unary encoding
+ * @param lowWidth the number of low bits per position
+ * @param ones     the number of {@code 1} bits
+ * @param bitSize  the number of bits the bit vector consists of
+ */
+record EliasFanoBitVector(
+        MemorySegment lowBits,
+        EfficientBitVector highBits,
+        int lowWidth,
+        long ones,
+        long bitSize
+) implements BitVector {
+
+    static EliasFanoBitVector createEliasFanoBitVector(Arena arena, MemorySegment segment, long bitSize) {
+        long nOfWords = Math.ceilDiv(bitSize, Long.SIZE);
+        long ones = 0;
+        for (long wordIndex = 0; wordIndex < nOfWords; wordIndex++) {
+            ones += Long.bitCount(word(segment, wordIndex, bitSize));
+        }
+        int lowWidth = ones == 0 ? 0 : 63 - Long.numberOfLeadingZeros(Math.max(bitSize / ones, 1));
+        long highSize = ones + (bitSize == 0 ? 0 : ((bitSize - 1) >>> lowWidth) + 1);
+        // one additional word, as bits are read and written word-wise
+        MemorySegment lowBits = arena.allocate(ValueLayout.JAVA_LONG, Math.ceilDiv(ones * lowWidth, Long.SIZE) + 1);
+        MemorySegment high = arena.allocate(ValueLayout.JAVA_LONG, Math.ceilDiv(highSize, Long.SIZE) + 1);
+        long i = 0;
+        for (long wordIndex = 0; wordIndex < nOfWords; wordIndex++) {
+            long word = word(segment, wordIndex, bitSize);
+            for (; word != 0; word &= word - 1, i++) {
+                long position = wordIndex * Long.SIZE + Long.numberOfTrailingZeros(word);
+                MemorySupport.setBits(lowBits, i * lowWidth, lowWidth, position);
+                MemorySupport.setBits(high, (position >>> lowWidth) + i, 1, 1);
+            }
+        }
+        EfficientBitVector highBits = EfficientBitVector.createEfficientBitVector(arena, high, highSize);
+        return new EliasFanoBitVector(lowBits, highBits, lowWidth, ones, bitSize);
+    }
+
+    private static long word(MemorySegment segment, long wordIndex, long bitSize) {
+        long word = MemorySupport.getWord(segment, wordIndex);
+        if (wordIndex == bitSize / Long.SIZE) {
+            // make sure bits beyond bitSize are 0
+            word &= (1L << bitSize) - 1;
+        }
+        return word;
+    }
+
+    private long low(long i) {
+        return MemorySupport.getBits(lowBits, i * lowWidth, lowWidth);
+    }
+
+    /**
+     * {@return the position of the {@code i}th (0-based) {@code 1} bit}
+     */
+    private long position(long i) {
+        long high = highBits.select(i + 1, 1) - i;
+        return (high << lowWidth) | low(i);
+    }
+
+    /**
+     * {@return the number of {@code 1} bits before the given index}
+     */
+    private long countOnesBefore(long index) {
+        long high = index >>> lowWidth;
+        long low = index & ((1L << lowWidth) - 1);
+        // the high bits of all positions with smaller high bits are in front of the high-th 0 bit,
+        // the positions with the same high bits are in front of the (high + 1)-th 0 bit
+        long lower = high == 0 ? 0 : highBits.select(high, 0) + 1 - high;
+        long upper = highBits.select(high + 1, 0) - high;
+        // the low bits of the positions with the same high bits are sorted
+        while (lower < upper) {
+            long c = (lower + upper) >>> 1;
+            if (low(c) < low) {
+                lower = c + 1;
+            } else {
+                upper = c;
+            }
+        }
+        return lower;
+    }
+
+    @Override
+    public long rank(long index, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        assert index >= 0 && index < bitSize : "index must be in bounds";
+        long onesBefore = countOnesBefore(index);
+        if (bit == 0) {
+            return index - onesBefore;
+        }
+        return onesBefore;
+    }
+
+    @Override
+    public long select(long rank, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        if (bit == 1) {
+            if (rank <= 0 || rank > ones) {
+                return -1;
+            }
+            return position(rank - 1);
+        }
+        if (rank <= 0 || rank > bitSize - ones) {
+            return -1;
+        }
+        // find the number of 1 bits before the requested 0 bit,
+        // the count of 0 bits before the ith 1 bit (position(i) - i) is monotonic
+        long lower = 0;
+        long upper = ones;
+        while (lower < upper) {
+            long c = (lower + upper) >>> 1;
+            if (position(c) - c < rank) {
+                lower = c + 1;
+            } else {
+                upper = c;
+            }
+        }
+        return rank - 1 + lower;
+    }
+
+    @Override
+    public int access(long index) {
+        long i = countOnesBefore(index);
+        return i < ones && position(i) == index ? 1 : 0;
+    }
+
+    @Override
+    public long memoryUsage() {
+        return lowBits.byteSize() + highBits.memoryUsage();
+    }
+
+    @Override
+    public BitVectorStats stats() {
+        List<BitVectorStats.Component> components = new ArrayList<>();
+        components.add(new BitVectorStats.Component("lowBits", lowBits.byteSize()));
+        for (BitVectorStats.Component component : highBits.stats().components()) {
+            components.add(new BitVectorStats.Component("highBits." + component.name(), component.bytes()));
+        }
+        return new BitVectorStats(bitSize, components);
+    }
+
+    @Override
+    public void print(PrintStream output) {
+        for (long l = 0; l < bitSize; l++) {
+            output.print(access(l));
+        }
+    }
+}
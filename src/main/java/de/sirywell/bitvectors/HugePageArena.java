@@ -0,0 +1,264 @@
+package de.sirywell.bitvectors;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A shared arena that backs large allocations by huge pages, to reduce TLB misses on random accesses.
+ * <p/>
+ * Large allocations are mapped with {@code mmap(MAP_HUGETLB)} first, which requires reserved huge pages.
+ * If that fails, the memory is mapped with regular pages and {@code madvise(MADV_HUGEPAGE)}, so transparent
+ * huge pages can be used. If that fails as well, or if the platform doesn't support it, the allocation falls back
+ * to a regular shared arena. Optionally, the mapped memory is interleaved across all NUMA nodes or bound to a
+ * single node using {@code mbind}.
+ * <p/>
+ * Small allocations are not worth a huge page and use the regular shared arena directly.
+ */
+final class HugePageArena implements Arena {
+    static final long HUGE_PAGE_SIZE = 1 << 21;
+    /**
+     * Allocations smaller than this many bytes always use regular pages.
+     */
+    private static final long MIN_HUGE_PAGE_ALLOCATION = Long.getLong("ads.memory.min", 1 << 20);
+
+    private static final int PROT_READ = 0x1;
+    private static final int PROT_WRITE = 0x2;
+    private static final int MAP_PRIVATE = 0x02;
+    private static final int MAP_ANONYMOUS = 0x20;
+    private static final int MAP_HUGETLB = 0x40000;
+    private static final int MADV_HUGEPAGE = 14;
+    private static final long MPOL_BIND = 2;
+    private static final long MPOL_INTERLEAVE = 3;
+    private static final long MAP_FAILED = -1;
+
+    private static final MethodHandle MMAP;
+    private static final MethodHandle MUNMAP;
+    private static final MethodHandle MADVISE;
+    private static final MethodHandle SYSCALL;
+    /**
+     * The number of the mbind syscall, or -1 if unknown for this architecture.
+     */
+    private static final long SYS_MBIND = switch (System.getProperty("os.arch")) {
+        case "amd64", "x86_64" -> 237;
+        case "aarch64" -> 235;
+        default -> -1;
+    };
+
+    static {
+        Linker linker = Linker.nativeLinker();
+        SymbolLookup libc = linker.defaultLookup();
+        boolean linux = System.getProperty("os.name").startsWith("Linux");
+        MMAP = !linux ? null : libc.find("mmap").map(address -> linker.downcallHandle(address, FunctionDescriptor.of(
+                ValueLayout.ADDRESS,
+                ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG
+        ))).orElse(null);
+        MUNMAP = !linux ? null : libc.find("munmap").map(address -> linker.downcallHandle(address, FunctionDescriptor.of(
+                ValueLayout.JAVA_INT,
+                ValueLayout.ADDRESS, ValueLayout.JAVA_LONG
+        ))).orElse(null);
+        MADVISE = !linux ? null : libc.find("madvise").map(address -> linker.downcallHandle(address, FunctionDescriptor.of(
+                ValueLayout.JAVA_INT,
+                ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_INT
+        ))).orElse(null);
+        // glibc doesn't provide mbind, so it is called through syscall(SYS_mbind, addr, len, mode, nodemask, maxnode, flags)
+        SYSCALL = !linux ? null : libc.find("syscall").map(address -> linker.downcallHandle(address, FunctionDescriptor.of(
+                ValueLayout.JAVA_LONG,
+                ValueLayout.JAVA_LONG, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG,
+                ValueLayout.ADDRESS, ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG
+        ), Linker.Option.firstVariadicArg(1))).orElse(null);
+    }
+
+    /**
+     * How the memory is distributed across NUMA nodes.
+     */
+    enum NumaPolicy {
+        /**
+         * The memory is allocated according to the default policy of the process, usually on the local node.
+         */
+        NONE,
+        /**
+         * The pages are interleaved across all online nodes.
+         */
+        INTERLEAVE,
+        /**
+         * The pages are allocated on a single node.
+         */
+        BIND
+    }
+
+    private final Arena arena = Arena.ofShared();
+    private final NumaPolicy numaPolicy;
+    private final int numaNode;
+    /**
+     * The policies that were actually applied to allocations, as some might have fallen back.
+     */
+    private final Set<String> appliedPolicies = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param numaPolicy how to distribute the memory across NUMA nodes
+     * @param numaNode   the node to bind the memory to, if the policy is {@link NumaPolicy#BIND}
+     */
+    HugePageArena(NumaPolicy numaPolicy, int numaNode) {
+        this.numaPolicy = numaPolicy;
+        this.numaNode = numaNode;
+    }
+
+    @Override
+    public MemorySegment allocate(long byteSize, long byteAlignment) {
+        if (byteSize < MIN_HUGE_PAGE_ALLOCATION || byteAlignment > HUGE_PAGE_SIZE || MMAP == null || MUNMAP == null) {
+            return arena.allocate(byteSize, byteAlignment);
+        }
+        long size = Math.ceilDiv(byteSize, HUGE_PAGE_SIZE) * HUGE_PAGE_SIZE;
+        MemorySegment mapping = mmap(size, MAP_HUGETLB);
+        long mappingSize = size;
+        long start;
+        String pagePolicy;
+        if (mapping.address() != MAP_FAILED) {
+            start = mapping.address();
+            pagePolicy = "hugetlb";
+        } else {
+            // map one more huge page, so the memory can start at a huge page boundary
+            mappingSize = size + HUGE_PAGE_SIZE;
+            mapping = mmap(mappingSize, 0);
+            if (mapping.address() == MAP_FAILED) {
+                appliedPolicies.add("default");
+                return arena.allocate(byteSize, byteAlignment);
+            }
+            start = Math.ceilDiv(mapping.address(), HUGE_PAGE_SIZE) * HUGE_PAGE_SIZE;
+            pagePolicy = madvise(start, size) ? "thp" : "default";
+        }
+        appliedPolicies.add(pagePolicy + numaSuffix(bind(start, size)));
+        MemorySegment unmapped = mapping;
+        long unmappedSize = mappingSize;
+        return MemorySegment.ofAddress(start).reinterpret(byteSize, arena, segment -> munmap(unmapped, unmappedSize));
+    }
+
+    /**
+     * {@return a description of the policies used for the allocations so far}
+     * If allocations used different policies, e.g. because huge pages ran out, all of them are listed.
+     */
+    String policy() {
+        if (appliedPolicies.isEmpty()) {
+            return "default";
+        }
+        return String.join("+", new TreeSet<>(appliedPolicies));
+    }
+
+    private String numaSuffix(boolean applied) {
+        if (!applied) {
+            return "";
+        }
+        return switch (numaPolicy) {
+            case NONE -> "";
+            case INTERLEAVE -> "/interleave";
+            case BIND -> "/bind" + numaNode;
+        };
+    }
+
+    private static MemorySegment mmap(long size, int flags) {
+        try {
+            return (MemorySegment) MMAP.invokeExact(
+                    MemorySegment.NULL, size, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS | flags, -1, 0L
+            );
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void munmap(MemorySegment mapping, long size) {
+        try {
+            int result = (int) MUNMAP.invokeExact(mapping, size);
+            assert result == 0 : "munmap failed";
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static boolean madvise(long start, long size) {
+        if (MADVISE == null) {
+            return false;
+        }
+        try {
+            return (int) MADVISE.invokeExact(MemorySegment.ofAddress(start), size, MADV_HUGEPAGE) == 0;
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Applies the NUMA policy to the memory. This must happen before the memory is touched.
+     *
+     * @return whether a policy other than {@link NumaPolicy#NONE} was applied successfully
+     */
+    private boolean bind(long start, long size) {
+        if (numaPolicy == NumaPolicy.NONE || SYSCALL == null || SYS_MBIND < 0) {
+            return false;
+        }
+        long[] nodes = numaPolicy == NumaPolicy.BIND ? nodeMask(numaNode) : onlineNodes();
+        long mode = numaPolicy == NumaPolicy.BIND ? MPOL_BIND : MPOL_INTERLEAVE;
+        try (Arena temporary = Arena.ofConfined()) {
+            MemorySegment nodeMask = temporary.allocateFrom(ValueLayout.JAVA_LONG, nodes);
+            // the kernel ignores the last bit of maxnode
+            long maxNode = (long) nodes.length * Long.SIZE + 1;
+            long result = (long) SYSCALL.invokeExact(
+                    SYS_MBIND, MemorySegment.ofAddress(start), size, mode, nodeMask, maxNode, 0L
+            );
+            return result == 0;
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static long[] nodeMask(int node) {
+        long[] mask = new long[node / Long.SIZE + 1];
+        mask[node / Long.SIZE] |= 1L << node;
+        return mask;
+    }
+
+    /**
+     * {@return the mask of the online NUMA nodes, as listed in sysfs, e.g. {@code 0-1,4}}
+     */
+    private static long[] onlineNodes() {
+        String online;
+        try {
+            online = Files.readString(Path.of("/sys/devices/system/node/online")).strip();
+        } catch (IOException e) {
+            return nodeMask(0);
+        }
+        int max = 0;
+        for (String range : online.split(",")) {
+            String[] bounds = range.split("-");
+            max = Math.max(max, Integer.parseInt(bounds[bounds.length - 1]));
+        }
+        long[] mask = new long[max / Long.SIZE + 1];
+        for (String range : online.split(",")) {
+            String[] bounds = range.split("-");
+            int last = Integer.parseInt(bounds[bounds.length - 1]);
+            for (int node = Integer.parseInt(bounds[0]); node <= last; node++) {
+                mask[node / Long.SIZE] |= 1L << node;
+            }
+        }
+        return mask;
+    }
+
+    @Override
+    public MemorySegment.Scope scope() {
+        return arena.scope();
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
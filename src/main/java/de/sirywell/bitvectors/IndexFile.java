@@ -0,0 +1,192 @@
+package de.sirywell.bitvectors;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+import static java.lang.invoke.MethodHandles.insertCoordinates;
+
+/**
+ * Stores an {@link EfficientBitVector} together with its lookup data in a file, and maps it back into memory
+ * without building anything.
+ * <p/>
+ * A file starts with a header, see {@link #HEADER_LAYOUT}. The header values are always stored in little endian.
+ * The header is followed by the bit vector data, the rank lookup data and the select lookup data.
+ * Each of these sections starts at a multiple of {@value SECTION_ALIGNMENT} bytes, and is stored in the byte order
+ * denoted by the header. The checksum is a CRC32C of the whole file, except for the checksum itself.
+ */
+final class IndexFile {
+    private static final long MAGIC = 0x5844_4956_4253_4441L; // "ADSBVIDX"
+    private static final int VERSION = 2;
+    private static final int LITTLE_ENDIAN = 0;
+    private static final int BIG_ENDIAN = 1;
+    private static final long SECTION_ALIGNMENT = 64;
+    private static final long CHECKSUM_CHUNK_SIZE = 1 << 30;
+
+    private static final ValueLayout.OfLong HEADER_LONG = ValueLayout.JAVA_LONG.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt HEADER_INT = ValueLayout.JAVA_INT.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final StructLayout HEADER_LAYOUT = MemoryLayout.structLayout(
+            HEADER_LONG.withName("magic"),
+            HEADER_INT.withName("version"),
+            HEADER_INT.withName("byteOrder"),
+            HEADER_LONG.withName("bitSize"),
+            HEADER_LONG.withName("superBlockSize"),
+            HEADER_LONG.withName("blockSize"),
+            HEADER_LONG.withName("selectSampleRate"),
+            HEADER_LONG.withName("segmentSize"),
+            HEADER_LONG.withName("rankLookupSize"),
+            HEADER_LONG.withName("selectLookupSize"),
+            HEADER_LONG.withName("checksum")
+    );
+    private static final long HEADER_SIZE = align(HEADER_LAYOUT.byteSize());
+    private static final long CHECKSUM_OFFSET = HEADER_LAYOUT.byteOffset(MemoryLayout.PathElement.groupElement("checksum"));
+
+    private static final VarHandle MAGIC_HANDLE = headerHandle("magic");
+    private static final VarHandle VERSION_HANDLE = headerHandle("version");
+    private static final VarHandle BYTE_ORDER_HANDLE = headerHandle("byteOrder");
+    private static final VarHandle BIT_SIZE_HANDLE = headerHandle("bitSize");
+    private static final VarHandle SUPER_BLOCK_SIZE_HANDLE = headerHandle("superBlockSize");
+    private static final VarHandle BLOCK_SIZE_HANDLE = headerHandle("blockSize");
+    private static final VarHandle SELECT_SAMPLE_RATE_HANDLE = headerHandle("selectSampleRate");
+    private static final VarHandle SEGMENT_SIZE_HANDLE = headerHandle("segmentSize");
+    private static final VarHandle RANK_LOOKUP_SIZE_HANDLE = headerHandle("rankLookupSize");
+    private static final VarHandle SELECT_LOOKUP_SIZE_HANDLE = headerHandle("selectLookupSize");
+    private static final VarHandle CHECKSUM_HANDLE = headerHandle("checksum");
+
+    private IndexFile() {
+
+    }
+
+    private static VarHandle headerHandle(String name) {
+        return insertCoordinates(HEADER_LAYOUT.varHandle(MemoryLayout.PathElement.groupElement(name)), 1, 0L);
+    }
+
+    /**
+     * Writes the bit vector and its lookup data to the given file, replacing the file if it exists.
+     */
+    static void write(EfficientBitVector bitVector, Path path) throws IOException {
+        MemorySegment segment = bitVector.segment();
+        MemorySegment rankLookup = bitVector.rankLookup();
+        MemorySegment selectLookup = bitVector.selectLookup();
+        long rankLookupOffset = align(HEADER_SIZE + segment.byteSize());
+        long selectLookupOffset = align(rankLookupOffset + rankLookup.byteSize());
+        long fileSize = selectLookupOffset + selectLookup.byteSize();
+        try (Arena arena = Arena.ofConfined();
+             FileChannel channel = FileChannel.open(
+                     path,
+                     StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.READ,
+                     StandardOpenOption.WRITE
+             )) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize, arena);
+            MemorySegment.copy(segment, 0, file, HEADER_SIZE, segment.byteSize());
+            MemorySegment.copy(rankLookup, 0, file, rankLookupOffset, rankLookup.byteSize());
+            MemorySegment.copy(selectLookup, 0, file, selectLookupOffset, selectLookup.byteSize());
+            MAGIC_HANDLE.set(file, MAGIC);
+            VERSION_HANDLE.set(file, VERSION);
+            BYTE_ORDER_HANDLE.set(file, ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? LITTLE_ENDIAN : BIG_ENDIAN);
+            BIT_SIZE_HANDLE.set(file, bitVector.bitSize());
+            SUPER_BLOCK_SIZE_HANDLE.set(file, EfficientBitVector.RANK_SUPER_BLOCK_SIZE);
+            BLOCK_SIZE_HANDLE.set(file, EfficientBitVector.RANK_BLOCK_SIZE);
+            SELECT_SAMPLE_RATE_HANDLE.set(file, EfficientBitVector.SELECT_SAMPLE_RATE);
+            SEGMENT_SIZE_HANDLE.set(file, segment.byteSize());
+            RANK_LOOKUP_SIZE_HANDLE.set(file, rankLookup.byteSize());
+            SELECT_LOOKUP_SIZE_HANDLE.set(file, selectLookup.byteSize());
+            CHECKSUM_HANDLE.set(file, checksum(file));
+            file.force();
+        }
+    }
+
+    /**
+     * Maps the given file into memory, without verifying its checksum.
+     *
+     * @see #map(Path, Arena, boolean)
+     */
+    static EfficientBitVector map(Path path, Arena arena) throws IOException {
+        return map(path, arena, false);
+    }
+
+    /**
+     * Maps the given file into memory. The returned bit vector directly uses the mapped file,
+     * it is valid as long as the arena is alive.
+     *
+     * @param verifyChecksum whether the checksum should be verified. This requires reading the whole file.
+     * @throws IOException if the file can't be read, or if it isn't a valid index file for this platform.
+     *                     The sizes in the header are always checked for consistency.
+     */
+    static EfficientBitVector map(Path path, Arena arena, boolean verifyChecksum) throws IOException {
+        MemorySegment file;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+        }
+        if (file.byteSize() < HEADER_SIZE || (long) MAGIC_HANDLE.get(file) != MAGIC) {
+            throw new IOException("not an index file: " + path);
+        }
+        int version = (int) VERSION_HANDLE.get(file);
+        if (version != VERSION) {
+            throw new IOException("unsupported index file version " + version + ": " + path);
+        }
+        int byteOrder = (int) BYTE_ORDER_HANDLE.get(file);
+        if (byteOrder != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? LITTLE_ENDIAN : BIG_ENDIAN)) {
+            throw new IOException("index file has a different byte order: " + path);
+        }
+        if (verifyChecksum && (long) CHECKSUM_HANDLE.get(file) != checksum(file)) {
+            throw new IOException("index file is corrupted: " + path);
+        }
+        if ((long) SUPER_BLOCK_SIZE_HANDLE.get(file) != EfficientBitVector.RANK_SUPER_BLOCK_SIZE
+            || (long) BLOCK_SIZE_HANDLE.get(file) != EfficientBitVector.RANK_BLOCK_SIZE
+            || (long) SELECT_SAMPLE_RATE_HANDLE.get(file) != EfficientBitVector.SELECT_SAMPLE_RATE) {
+            throw new IOException("index file has an incompatible layout: " + path);
+        }
+        long bitSize = (long) BIT_SIZE_HANDLE.get(file);
+        long segmentSize = (long) SEGMENT_SIZE_HANDLE.get(file);
+        long rankLookupSize = (long) RANK_LOOKUP_SIZE_HANDLE.get(file);
+        long selectLookupSize = (long) SELECT_LOOKUP_SIZE_HANDLE.get(file);
+        // the bit vector relies on these sizes, so a bad header must not get past this point
+        if (bitSize < 0
+            || segmentSize < Math.ceilDiv(bitSize, Byte.SIZE)
+            || segmentSize > file.byteSize()
+            || rankLookupSize != EfficientBitVector.rankLookupSize(bitSize)
+            || selectLookupSize != EfficientBitVector.selectLookupSize(bitSize)) {
+            throw new IOException("index file has inconsistent sizes: " + path);
+        }
+        long rankLookupOffset = align(HEADER_SIZE + segmentSize);
+        long selectLookupOffset = align(rankLookupOffset + rankLookupSize);
+        if (file.byteSize() != selectLookupOffset + selectLookupSize) {
+            throw new IOException("index file is truncated: " + path);
+        }
+        return new EfficientBitVector(
+                file.asSlice(HEADER_SIZE, segmentSize),
+                file.asSlice(rankLookupOffset, rankLookupSize),
+                file.asSlice(selectLookupOffset, selectLookupSize),
+                bitSize
+        );
+    }
+
+    private static long checksum(MemorySegment file) {
+        CRC32C crc = new CRC32C();
+        // the header is covered as well, so a corrupted size is detected
+        crc.update(file.asSlice(0, CHECKSUM_OFFSET).asByteBuffer());
+        crc.update(file.asSlice(CHECKSUM_OFFSET + Long.BYTES, HEADER_SIZE - CHECKSUM_OFFSET - Long.BYTES).asByteBuffer());
+        // a ByteBuffer can't be larger than 2 GiB
+        for (long offset = HEADER_SIZE; offset < file.byteSize(); offset += CHECKSUM_CHUNK_SIZE) {
+            long size = Math.min(CHECKSUM_CHUNK_SIZE, file.byteSize() - offset);
+            crc.update(file.asSlice(offset, size).asByteBuffer());
+        }
+        return crc.getValue();
+    }
+
+    private static long align(long offset) {
+        return Math.ceilDiv(offset, SECTION_ALIGNMENT) * SECTION_ALIGNMENT;
+    }
+}
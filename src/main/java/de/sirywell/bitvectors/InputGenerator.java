@@ -1,46 +1,332 @@
 package de.sirywell.bitvectors;
 
-import java.io.Console;
 import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.random.RandomGenerator;
-import java.util.random.RandomGeneratorFactory;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.stream.LongStream;
 
 /**
- * Generator for the inputs used in the document. All mentioned inputs were generated with seed 42.
+ * Generates input files, and optionally the matching index file, for benchmarks:
+ * {@code InputGenerator <output_file> <instructions> <bit_size>}.
+ * <p/>
+ * The generator is configured by system properties:
+ * <ul>
+ *     <li>{@code ads.gen.seed}: the seed, 42 by default. The output only depends on the seed and the parameters,
+ *     not on the number of threads.</li>
+ *     <li>{@code ads.gen.density}: the fraction of 1 bits, 0.5 by default.</li>
+ *     <li>{@code ads.gen.run}: the average length of runs of 1 bits. By default, the bits are independent,
+ *     larger values produce clusters of 1s and 0s.</li>
+ *     <li>{@code ads.gen.ops}: the kind of instructions, one of {@code all} (the default), {@code access},
+ *     {@code rank} and {@code select}.</li>
+ *     <li>{@code ads.gen.locality}: the distribution of the queried indices and ranks: {@code uniform} (the default),
+ *     {@code zipf}, where few pages of {@value #PAGE_SIZE} indices are queried most of the time, or {@code sequential},
+ *     where the queries scan the bit vector from start to end.</li>
+ *     <li>{@code ads.gen.zipf}: the exponent of the Zipfian distribution, 1.0 by default.</li>
+ *     <li>{@code ads.gen.index}: if set, the index file of the bit vector is written to this path,
+ *     so it can be mapped with {@code -Dads.index} instead of being built.</li>
+ * </ul>
+ * Select instructions only query ranks that exist, and if the bit vector doesn't contain a bit at all,
+ * no select instructions for that bit are generated.
+ * <p/>
+ * The bits are generated in parallel chunks, and written in parallel into the mapped file as they have a fixed
+ * length. The instructions are formatted in parallel chunks, and then appended in order.
  */
 public class InputGenerator {
+    private static final long SEED = Long.getLong("ads.gen.seed", 42);
+    private static final double DENSITY = Double.parseDouble(System.getProperty("ads.gen.density", "0.5"));
+    private static final double RUN_LENGTH = Double.parseDouble(System.getProperty("ads.gen.run", "0"));
+    private static final String OPS = System.getProperty("ads.gen.ops", "all");
+    private static final Locality LOCALITY = Locality.valueOf(
+            System.getProperty("ads.gen.locality", "uniform").toUpperCase(Locale.ROOT)
+    );
+    private static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("ads.gen.zipf", "1.0"));
+    private static final String INDEX_FILE = System.getProperty("ads.gen.index");
+
+    private static final long CHUNK_WORDS = 1 << 16;
+    private static final int INSTRUCTION_CHUNK_SIZE = 1 << 16;
+    /**
+     * The number of instruction chunks formatted at once, before they are written.
+     */
+    private static final int INSTRUCTION_CHUNKS_PER_ROUND = 4 * Runtime.getRuntime().availableProcessors();
+    /**
+     * The number of consecutive indices (or ranks) that are equally hot with the Zipfian locality.
+     */
+    private static final long PAGE_SIZE = 1 << 12;
+    /**
+     * Distinguishes the random streams of the bits and the instructions.
+     */
+    private static final long INSTRUCTION_STREAM = 0x5EED_0000_0000_0001L;
+    /**
+     * {@code BYTE_CHARS[b]} are the 8 characters of the bits of {@code b}, the lowest bit first, in little endian.
+     */
+    private static final long[] BYTE_CHARS = new long[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            long chars = 0;
+            for (int bit = 0; bit < Byte.SIZE; bit++) {
+                chars |= (long) ('0' + ((b >>> bit) & 1)) << (bit * Byte.SIZE);
+            }
+            BYTE_CHARS[b] = chars;
+        }
+    }
+
+    enum Locality {
+        UNIFORM,
+        ZIPF,
+        SEQUENTIAL
+    }
 
     public static void main(String[] args) throws IOException {
-        Console console = System.console();
-        int instr = Integer.parseInt(console.readLine("Instructions: "));
-        long bvs = Long.parseLong(console.readLine("Bit Vector Size: "));
-        String seed = console.readLine("Seed: ");
-        int instructionMode = Integer.parseInt(console.readLine("Instruction Mode (-1: All, 0: Access, 1: Rank, 2: Select): "));
-        String fileName = console.readLine("File Name: ");
-
-        RandomGenerator rng = RandomGeneratorFactory.getDefault().create(seed.getBytes(StandardCharsets.UTF_8));
-        Path path = Path.of(fileName);
-        try (var writer = Files.newBufferedWriter(path)) {
-            writer.append(String.valueOf(instr)).append("\n");
-            for (long l = 0; l < bvs; l++) {
-                writer.write(rng.nextBoolean() ? "0" : "1");
-            }
-            writer.write("\n");
-            for (int i = 0; i < instr; i++) {
-                switch (instructionMode == -1 ? rng.nextInt(3) : instructionMode) {
-                    case 0 -> writer.append("access ").append(String.valueOf(rng.nextLong(bvs)));
-                    case 1 -> writer.append("rank ")
-                            .append(String.valueOf(rng.nextInt(2)))
-                            .append(" ").append(String.valueOf(rng.nextLong(bvs)));
-                    case 2 -> writer.append("select ")
-                            .append(String.valueOf(rng.nextInt(2)))
-                            .append(" ").append(String.valueOf(rng.nextLong(1, bvs)));
+        assert args.length == 3 : "usage: <output_file> <instructions> <bit_size>";
+        Path outputFile = Path.of(args[0]);
+        long instructions = Long.parseLong(args[1]);
+        long bitSize = Long.parseLong(args[2]);
+        if (bitSize <= 0 || instructions < 0) {
+            throw new IllegalArgumentException("the bit size must be positive and the instructions must not be negative");
+        }
+        if (DENSITY < 0 || DENSITY > 1) {
+            throw new IllegalArgumentException("density must be between 0 and 1: " + DENSITY);
+        }
+        try (Arena arena = Arena.ofShared()) {
+            long nOfWords = Math.ceilDiv(bitSize, Long.SIZE);
+            MemorySegment words = arena.allocate(ValueLayout.JAVA_LONG, nOfWords);
+            long ones = generateBits(words, bitSize);
+            try (FileChannel channel = FileChannel.open(
+                    outputFile,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE
+            )) {
+                byte[] header = (instructions + "\n").getBytes(StandardCharsets.US_ASCII);
+                long bitsEnd = header.length + bitSize;
+                MemorySegment prefix = channel.map(FileChannel.MapMode.READ_WRITE, 0, bitsEnd + 1, arena);
+                MemorySegment.copy(header, 0, prefix, ValueLayout.JAVA_BYTE, 0, header.length);
+                writeBits(words, bitSize, prefix.asSlice(header.length, bitSize));
+                prefix.set(ValueLayout.JAVA_BYTE, bitsEnd, (byte) '\n');
+                prefix.force();
+                writeInstructions(channel, bitsEnd + 1, instructions, bitSize, ones);
+            }
+            if (INDEX_FILE != null) {
+                EfficientBitVector bitVector = EfficientBitVector.createEfficientBitVector(
+                        arena, words, bitSize, EfficientBitVector.buildParallelism(bitSize)
+                );
+                IndexFile.write(bitVector, Path.of(INDEX_FILE));
+            }
+            System.out.println("generated " + bitSize + " bits with " + ones + " ones and " + instructions + " instructions");
+        }
+    }
+
+    /**
+     * Fills the words with random bits in parallel chunks. Bits beyond {@code bitSize} are 0.
+     *
+     * @return the number of 1 bits
+     */
+    private static long generateBits(MemorySegment words, long bitSize) {
+        long nOfWords = words.byteSize() / Long.BYTES;
+        long chunks = Math.ceilDiv(nOfWords, CHUNK_WORDS);
+        return LongStream.range(0, chunks).parallel().map(chunk -> {
+            SplittableRandom random = new SplittableRandom(chunkSeed(0, chunk));
+            long from = chunk * CHUNK_WORDS;
+            long[] chunkWords = new long[(int) Math.min(CHUNK_WORDS, nOfWords - from)];
+            if (RUN_LENGTH > 0) {
+                clusteredWords(random, chunkWords);
+            } else {
+                independentWords(random, chunkWords);
+            }
+            if (from + chunkWords.length == nOfWords && bitSize % Long.SIZE != 0) {
+                chunkWords[chunkWords.length - 1] &= (1L << bitSize) - 1;
+            }
+            MemorySegment.copy(chunkWords, 0, words, ValueLayout.JAVA_LONG, from * Long.BYTES, chunkWords.length);
+            long ones = 0;
+            for (long word : chunkWords) {
+                ones += Long.bitCount(word);
+            }
+            return ones;
+        }).sum();
+    }
+
+    /**
+     * Generates independent bits with the given density, up to a precision of 32 bits. Starting with 0s, each
+     * binary digit of the density, from the lowest to the highest, combines the bits with new random bits:
+     * a 1 digit by OR, doubling the chance of 0s, a 0 digit by AND, halving the chance of 1s.
+     */
+    private static void independentWords(SplittableRandom random, long[] words) {
+        long fixedPoint = Math.round(DENSITY * (1L << 32));
+        for (int i = 0; i < words.length; i++) {
+            if (fixedPoint == 1L << 32) {
+                words[i] = -1;
+                continue;
+            }
+            long word = 0;
+            for (int digit = Long.numberOfTrailingZeros(fixedPoint); digit < 32; digit++) {
+                word = ((fixedPoint >>> digit) & 1) == 1 ? word | random.nextLong() : word & random.nextLong();
+            }
+            words[i] = word;
+        }
+    }
+
+    /**
+     * Generates alternating runs of 1s and 0s with geometrically distributed lengths. The average length of runs of 0s
+     * is chosen so that the density matches.
+     */
+    private static void clusteredWords(SplittableRandom random, long[] words) {
+        if (DENSITY == 0 || DENSITY == 1) {
+            independentWords(random, words);
+            return;
+        }
+        double onesRun = Math.max(1, RUN_LENGTH);
+        double zerosRun = Math.max(1, onesRun * (1 - DENSITY) / DENSITY);
+        long chunkBits = (long) words.length * Long.SIZE;
+        boolean one = random.nextDouble() < DENSITY;
+        for (long position = 0; position < chunkBits; one = !one) {
+            long end = Math.min(chunkBits, position + runLength(random, one ? onesRun : zerosRun));
+            if (one) {
+                setRange(words, position, end);
+            }
+            position = end;
+        }
+    }
+
+    /**
+     * {@return a geometrically distributed run length of at least 1 with the given mean}
+     */
+    private static long runLength(SplittableRandom random, double mean) {
+        if (mean <= 1) {
+            return 1;
+        }
+        return 1 + (long) (Math.log(1 - random.nextDouble()) / Math.log(1 - 1 / mean));
+    }
+
+    private static void setRange(long[] words, long from, long to) {
+        for (long position = from; position < to; ) {
+            int word = (int) (position / Long.SIZE);
+            int bit = (int) (position % Long.SIZE);
+            int width = (int) Math.min(Long.SIZE - bit, to - position);
+            words[word] |= (width == Long.SIZE ? -1 : (1L << width) - 1) << bit;
+            position += width;
+        }
+    }
+
+    /**
+     * Writes the bits as {@code '0'} and {@code '1'} characters in parallel chunks, 8 characters at once.
+     */
+    private static void writeBits(MemorySegment words, long bitSize, MemorySegment chars) {
+        long fullBytes = bitSize / Byte.SIZE;
+        long chunkBytes = CHUNK_WORDS * Long.BYTES;
+        LongStream.range(0, Math.ceilDiv(fullBytes, chunkBytes)).parallel().forEach(chunk -> {
+            long from = chunk * chunkBytes;
+            long to = Math.min(fullBytes, from + chunkBytes);
+            for (long b = from; b < to; b++) {
+                int value = Byte.toUnsignedInt(words.get(ValueLayout.JAVA_BYTE, b));
+                chars.set(MemorySupport.WORD_LAYOUT, b * Byte.SIZE, BYTE_CHARS[value]);
+            }
+        });
+        for (long bit = fullBytes * Byte.SIZE; bit < bitSize; bit++) {
+            long word = MemorySupport.getWord(words, bit / Long.SIZE);
+            chars.set(ValueLayout.JAVA_BYTE, bit, (byte) ('0' + ((word >>> (bit % Long.SIZE)) & 1)));
+        }
+    }
+
+    /**
+     * Formats the instructions in parallel chunks, and writes them in order, starting at the given file position.
+     */
+    private static void writeInstructions(FileChannel channel, long position, long instructions, long bitSize, long ones) throws IOException {
+        long chunks = Math.ceilDiv(instructions, INSTRUCTION_CHUNK_SIZE);
+        for (long round = 0; round < chunks; round += INSTRUCTION_CHUNKS_PER_ROUND) {
+            List<byte[]> formatted = LongStream.range(round, Math.min(chunks, round + INSTRUCTION_CHUNKS_PER_ROUND))
+                    .parallel()
+                    .mapToObj(chunk -> formatInstructions(chunk, instructions, bitSize, ones))
+                    .toList();
+            for (byte[] bytes : formatted) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        }
+    }
+
+    private static byte[] formatInstructions(long chunk, long instructions, long bitSize, long ones) {
+        SplittableRandom random = new SplittableRandom(chunkSeed(INSTRUCTION_STREAM, chunk));
+        long from = chunk * INSTRUCTION_CHUNK_SIZE;
+        long to = Math.min(instructions, from + INSTRUCTION_CHUNK_SIZE);
+        long zeros = bitSize - ones;
+        StringBuilder builder = new StringBuilder((int) (to - from) * 24);
+        for (long i = from; i < to; i++) {
+            String kind = OPS.equals("all") ? switch (random.nextInt(3)) {
+                case 0 -> "access";
+                case 1 -> "rank";
+                default -> "select";
+            } : OPS;
+            int bit = random.nextInt(2);
+            switch (kind) {
+                case "access" -> builder.append("access ").append(position(random, i, instructions, bitSize));
+                case "rank" -> builder.append("rank ").append(bit).append(' ').append(position(random, i, instructions, bitSize));
+                case "select" -> {
+                    // only select bits that occur at all
+                    if (bit == 1 && ones == 0 || bit == 0 && zeros == 0) {
+                        bit = 1 - bit;
+                    }
+                    long occurrences = bit == 1 ? ones : zeros;
+                    builder.append("select ").append(bit).append(' ').append(1 + position(random, i, instructions, occurrences));
                 }
-                writer.append("\n");
+                default -> throw new IllegalArgumentException("unknown instruction kind " + OPS);
             }
+            builder.append('\n');
         }
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * {@return an index (or rank - 1) in {@code [0, domain)} for the {@code i}-th instruction, according to the locality}
+     */
+    private static long position(SplittableRandom random, long i, long instructions, long domain) {
+        return switch (LOCALITY) {
+            case UNIFORM -> random.nextLong(domain);
+            case ZIPF -> {
+                long pages = Math.ceilDiv(domain, PAGE_SIZE);
+                // the hottest pages are spread across the domain
+                long page = Long.remainderUnsigned(zipf(random, pages) * 0x9E37_79B9_7F4A_7C15L, pages);
+                long pageStart = page * PAGE_SIZE;
+                yield pageStart + random.nextLong(Math.min(PAGE_SIZE, domain - pageStart));
+            }
+            case SEQUENTIAL -> {
+                // advance through the domain evenly, with some jitter within the stride
+                long stride = Math.max(1, domain / Math.max(1, instructions));
+                long base = (long) ((double) i / instructions * domain);
+                yield Math.min(domain - 1, base + random.nextLong(stride));
+            }
+        };
+    }
+
+    /**
+     * {@return a rank in {@code [1, n]}, approximately following a Zipfian distribution}
+     * The rank is sampled by inverting the distribution function of the continuous power law.
+     */
+    private static long zipf(SplittableRandom random, long n) {
+        double u = random.nextDouble();
+        double x;
+        if (Math.abs(ZIPF_EXPONENT - 1) < 1e-9) {
+            x = Math.pow(n, u);
+        } else {
+            double oneMinusS = 1 - ZIPF_EXPONENT;
+            x = Math.pow((Math.pow(n, oneMinusS) - 1) * u + 1, 1 / oneMinusS);
+        }
+        return Math.clamp((long) x, 1, n);
+    }
+
+    private static long chunkSeed(long stream, long chunk) {
+        return SEED ^ stream ^ (chunk * 0xBF58_476D_1CE4_E5B9L);
     }
 }
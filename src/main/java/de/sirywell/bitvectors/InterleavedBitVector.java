@@ -0,0 +1,179 @@
+package de.sirywell.bitvectors;
+
+import java.io.PrintStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.List;
+
+/**
+ * This is an implementation of a bit vector that stores its rank lookup data interleaved with the bit vector data,
+ * similar to rank9. The data is split into cache lines of 64 bytes. Each line starts with a 64-bit number
+ * containing the count of {@code 1} bits from the beginning of the bit vector up to (exclusive) the line,
+ * followed by 7 words (448 bits) of bit vector data. A final line only contains the total count of {@code 1} bits.
+ * <p/>
+ * This way, a {@code rank} lookup only touches a single cache line, and counts the bits of at most 7 words
+ * without any further lookup data.
+ * <p/>
+ * For {@code select}, we store the line of every 4096th occurrence, for both 0 bits and 1 bits.
+ * A sample and its successor bound the lines the requested occurrence can be in.
+ *
+ * @param lines       the interleaved rank lookup data and bit vector data
+ * @param selectOnes  the lines of the sampled 1 bits
+ * @param selectZeros the lines of the sampled 0 bits
+ * @param bitSize     the number of bits the bit vector consists of
+ */
+record InterleavedBitVector(
+        MemorySegment lines,
+        MemorySegment selectOnes,
+        MemorySegment selectZeros,
+        long bitSize
+) implements BitVector {
+    private static final long LINE_SIZE = 64; // in bytes
+    private static final int WORDS_PER_LINE = 7;
+    private static final long LINE_DATA_BITS = WORDS_PER_LINE * Long.SIZE;
+    private static final long SELECT_SAMPLE_RATE = 1 << 12;
+
+    static InterleavedBitVector createInterleavedBitVector(Arena arena, MemorySegment segment, long bitSize) {
+        long nOfLines = Math.ceilDiv(bitSize, LINE_DATA_BITS);
+        long nOfWords = Math.ceilDiv(bitSize, Long.SIZE);
+        MemorySegment lines = arena.allocate((nOfLines + 1) * LINE_SIZE, LINE_SIZE);
+        long ones = 0;
+        for (long line = 0; line < nOfLines; line++) {
+            lines.set(ValueLayout.JAVA_LONG, line * LINE_SIZE, ones);
+            for (int i = 0; i < WORDS_PER_LINE; i++) {
+                long wordIndex = line * WORDS_PER_LINE + i;
+                if (wordIndex >= nOfWords) {
+                    break;
+                }
+                long word = MemorySupport.getWord(segment, wordIndex);
+                if (wordIndex == nOfWords - 1 && bitSize % Long.SIZE != 0) {
+                    // make sure bits beyond bitSize are 0
+                    word &= (1L << bitSize) - 1;
+                }
+                lines.set(ValueLayout.JAVA_LONG, line * LINE_SIZE + (i + 1) * Long.BYTES, word);
+                ones += Long.bitCount(word);
+            }
+        }
+        lines.set(ValueLayout.JAVA_LONG, nOfLines * LINE_SIZE, ones);
+
+        MemorySegment selectOnes = arena.allocate(ValueLayout.JAVA_LONG, Math.ceilDiv(ones, SELECT_SAMPLE_RATE));
+        MemorySegment selectZeros = arena.allocate(ValueLayout.JAVA_LONG, Math.ceilDiv(bitSize - ones, SELECT_SAMPLE_RATE));
+        // the (1-based) ranks of the next occurrences we want to sample
+        long nextOneRank = 1;
+        long nextZeroRank = 1;
+        for (long line = 0; line < nOfLines; line++) {
+            long onesAfter = lines.get(ValueLayout.JAVA_LONG, (line + 1) * LINE_SIZE);
+            long zerosAfter = Math.min((line + 1) * LINE_DATA_BITS, bitSize) - onesAfter;
+            for (; nextOneRank <= onesAfter; nextOneRank += SELECT_SAMPLE_RATE) {
+                selectOnes.setAtIndex(ValueLayout.JAVA_LONG, (nextOneRank - 1) / SELECT_SAMPLE_RATE, line);
+            }
+            for (; nextZeroRank <= zerosAfter; nextZeroRank += SELECT_SAMPLE_RATE) {
+                selectZeros.setAtIndex(ValueLayout.JAVA_LONG, (nextZeroRank - 1) / SELECT_SAMPLE_RATE, line);
+            }
+        }
+        return new InterleavedBitVector(lines, selectOnes, selectZeros, bitSize);
+    }
+
+    @Override
+    public long rank(long index, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        assert index >= 0 && index < bitSize : "index must be in bounds";
+        long line = index / LINE_DATA_BITS;
+        long bitInLine = index % LINE_DATA_BITS;
+        long lineOffset = line * LINE_SIZE;
+        long targetWord = bitInLine / Long.SIZE;
+        long ones = lines.get(ValueLayout.JAVA_LONG, lineOffset);
+        // count the full words before the target word, and the lower bits of the target word.
+        // as all words are in the same cache line, we just mask instead of branching
+        for (int i = 0; i < WORDS_PER_LINE; i++) {
+            long word = lines.get(ValueLayout.JAVA_LONG, lineOffset + (i + 1) * Long.BYTES);
+            long mask = i < targetWord ? -1 : i == targetWord ? (1L << bitInLine) - 1 : 0;
+            ones += Long.bitCount(word & mask);
+        }
+        if (bit == 0) {
+            return index - ones;
+        }
+        return ones;
+    }
+
+    @Override
+    public long select(long rank, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        long nOfLines = Math.ceilDiv(bitSize, LINE_DATA_BITS);
+        long ones = lineOccurrences(nOfLines, 1);
+        long occurrences = bit == 1 ? ones : bitSize - ones;
+        if (rank <= 0 || rank > occurrences) {
+            return -1;
+        }
+        MemorySegment samples = bit == 1 ? selectOnes : selectZeros;
+        long sampleIndex = (rank - 1) / SELECT_SAMPLE_RATE;
+        long lowerLine = samples.getAtIndex(ValueLayout.JAVA_LONG, sampleIndex);
+        long upperLine = sampleIndex + 1 < samples.byteSize() / Long.BYTES
+                ? samples.getAtIndex(ValueLayout.JAVA_LONG, sampleIndex + 1)
+                : nOfLines - 1;
+        // find the last line with less than rank occurrences before it
+        while (lowerLine < upperLine) {
+            long c = lowerLine + ((upperLine - lowerLine + 1) >> 1);
+            if (lineOccurrences(c, bit) < rank) {
+                lowerLine = c;
+            } else {
+                upperLine = c - 1;
+            }
+        }
+        long remaining = rank - lineOccurrences(lowerLine, bit);
+        long lineOffset = lowerLine * LINE_SIZE;
+        for (int i = 0; i < WORDS_PER_LINE; i++) {
+            long word = lines.get(ValueLayout.JAVA_LONG, lineOffset + (i + 1) * Long.BYTES);
+            if (bit == 0) {
+                word = ~word;
+            }
+            int count = Long.bitCount(word);
+            if (remaining <= count) {
+                return lowerLine * LINE_DATA_BITS + (long) i * Long.SIZE + BitSupport.selectInWord(word, (int) remaining - 1);
+            }
+            remaining -= count;
+        }
+        throw new AssertionError("line does not contain enough occurrences");
+    }
+
+    /**
+     * {@return the number of occurrences of {@code bit} before the given line}
+     */
+    private long lineOccurrences(long line, int bit) {
+        long ones = lines.get(ValueLayout.JAVA_LONG, line * LINE_SIZE);
+        if (bit == 1) {
+            return ones;
+        }
+        return line * LINE_DATA_BITS - ones;
+    }
+
+    @Override
+    public int access(long index) {
+        long line = index / LINE_DATA_BITS;
+        long bitInLine = index % LINE_DATA_BITS;
+        long word = lines.get(ValueLayout.JAVA_LONG, line * LINE_SIZE + (bitInLine / Long.SIZE + 1) * Long.BYTES);
+        return (int) (word >>> bitInLine) & 1;
+    }
+
+    @Override
+    public long memoryUsage() {
+        return lines.byteSize() + selectOnes.byteSize() + selectZeros.byteSize();
+    }
+
+    @Override
+    public BitVectorStats stats() {
+        return new BitVectorStats(bitSize, List.of(
+                new BitVectorStats.Component("lines", lines.byteSize()),
+                new BitVectorStats.Component("selectOnes", selectOnes.byteSize()),
+                new BitVectorStats.Component("selectZeros", selectZeros.byteSize())
+        ));
+    }
+
+    @Override
+    public void print(PrintStream output) {
+        for (long l = 0; l < bitSize; l++) {
+            output.print(access(l));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package de.sirywell.bitvectors;
+
+import de.sirywell.bitvectors.instruction.Instructions;
+import de.sirywell.bitvectors.jfr.LatencyHistogram;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends random queries to a {@link QueryServer} and reports the throughput and the latencies of the frames.
+ * <p/>
+ * Each connection has a writer and a reader thread. The writer sends frames as long as fewer than
+ * {@code pipeline_depth} frames are waiting for their response, the reader measures the time from sending
+ * a frame until its response is received. The queries are spread uniformly across all operations and valid arguments.
+ */
+public final class LoadGenerator {
+    /**
+     * The number of distinct frames per connection, which are sent repeatedly, so generating queries is not measured.
+     */
+    private static final int DISTINCT_FRAMES = 16;
+
+    private LoadGenerator() {
+
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        assert args.length == 5 : "usage: <socket_file> <connections> <frames_per_connection> <queries_per_frame> <pipeline_depth>";
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(Path.of(args[0]));
+        int connections = Integer.parseInt(args[1]);
+        int frames = Integer.parseInt(args[2]);
+        int queriesPerFrame = Integer.parseInt(args[3]);
+        int pipelineDepth = Integer.parseInt(args[4]);
+        if (queriesPerFrame <= 0 || queriesPerFrame > QueryProtocol.MAX_FRAME_QUERIES) {
+            throw new IllegalArgumentException("queries per frame must be between 1 and " + QueryProtocol.MAX_FRAME_QUERIES);
+        }
+        LatencyHistogram latencies = new LatencyHistogram("frame");
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int connection = 0; connection < connections; connection++) {
+                long seed = connection;
+                futures.add(executor.submit(() -> {
+                    run(address, seed, frames, queriesPerFrame, pipelineDepth, latencies);
+                    return null;
+                }));
+            }
+        }
+        long duration = System.nanoTime() - start;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IOException("connection failed", e.getCause());
+            }
+        }
+        long queries = (long) connections * frames * queriesPerFrame;
+        long throughput = (long) (queries / (Math.max(1, duration) / 1e9));
+        System.out.println("RESULT name=hannes_greule connections=" + connections + " queries=" + queries
+                           + " depth=" + pipelineDepth + " throughput=" + throughput
+                           + " p50=" + latencies.percentile(0.5) + " p99=" + latencies.percentile(0.99)
+                           + " p999=" + latencies.percentile(0.999) + " max=" + latencies.percentile(1));
+    }
+
+    /**
+     * Sends the frames of a single connection and records their latencies.
+     */
+    private static void run(
+            UnixDomainSocketAddress address,
+            long seed,
+            int frames,
+            int queriesPerFrame,
+            int pipelineDepth,
+            LatencyHistogram latencies
+    ) throws IOException, InterruptedException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            ByteBuffer greeting = QueryProtocol.allocate(QueryProtocol.GREETING_SIZE);
+            if (!QueryProtocol.readFully(channel, greeting, QueryProtocol.GREETING_SIZE)
+                || greeting.getInt(0) != QueryProtocol.MAGIC
+                || greeting.getInt(Integer.BYTES) != QueryProtocol.VERSION) {
+                throw new IOException("not a compatible query server: " + address);
+            }
+            long bitSize = greeting.getLong(2 * Integer.BYTES);
+            long ones = greeting.getLong(2 * Integer.BYTES + Long.BYTES);
+            if (bitSize == 0) {
+                throw new IOException("the bit vector of the server is empty");
+            }
+            Random random = new Random(seed);
+            ByteBuffer[] requests = new ByteBuffer[DISTINCT_FRAMES];
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = randomFrame(random, queriesPerFrame, bitSize, ones);
+            }
+            Semaphore inFlight = new Semaphore(pipelineDepth);
+            Queue<Long> sendTimes = new ConcurrentLinkedQueue<>();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread reader = Thread.ofVirtual().start(() -> {
+                ByteBuffer response = QueryProtocol.allocate(QueryProtocol.MAX_RESPONSE_SIZE);
+                try {
+                    for (int frame = 0; frame < frames; frame++) {
+                        response.clear();
+                        if (!QueryProtocol.readFully(channel, response, QueryProtocol.HEADER_SIZE)) {
+                            throw new EOFException("connection closed by the server");
+                        }
+                        int n = response.getInt(0);
+                        if (n != queriesPerFrame) {
+                            throw new IOException("server answered with " + n + " to a frame of " + queriesPerFrame + " queries");
+                        }
+                        if (!QueryProtocol.readFully(channel, response, n * Long.BYTES)) {
+                            throw new EOFException("connection closed by the server");
+                        }
+                        latencies.record(System.nanoTime() - sendTimes.remove(), 1);
+                        inFlight.release();
+                    }
+                } catch (Throwable e) {
+                    // anything, not only I/O failures, must unblock the writer
+                    failure.set(e);
+                    inFlight.release(frames);
+                }
+            });
+            for (int frame = 0; frame < frames && failure.get() == null; frame++) {
+                inFlight.acquire();
+                // the time is queued before sending, so the reader always finds it
+                sendTimes.add(System.nanoTime());
+                QueryProtocol.writeFully(channel, requests[frame % requests.length].duplicate());
+            }
+            reader.join();
+            if (failure.get() != null) {
+                throw new IOException("failed to read responses", failure.get());
+            }
+        }
+    }
+
+    /**
+     * {@return a request frame of random queries with valid arguments}
+     */
+    private static ByteBuffer randomFrame(Random random, int n, long bitSize, long ones) {
+        ByteBuffer frame = QueryProtocol.allocate(QueryProtocol.HEADER_SIZE + n * (Long.BYTES + Byte.BYTES));
+        frame.putInt(0, n);
+        byte[] opcodes = {Instructions.ACCESS, Instructions.RANK_0, Instructions.RANK_1, Instructions.SELECT_0, Instructions.SELECT_1};
+        for (int i = 0; i < n; i++) {
+            byte opcode = opcodes[random.nextInt(opcodes.length)];
+            long argument = switch (opcode) {
+                case Instructions.SELECT_0 -> 1 + random.nextLong(Math.max(1, bitSize - ones));
+                case Instructions.SELECT_1 -> 1 + random.nextLong(Math.max(1, ones));
+                default -> random.nextLong(bitSize);
+            };
+            frame.putLong(QueryProtocol.HEADER_SIZE + i * Long.BYTES, argument);
+            frame.put(QueryProtocol.HEADER_SIZE + n * Long.BYTES + i, opcode);
+        }
+        return frame;
+    }
+}
@@ -1,9 +1,15 @@
 package de.sirywell.bitvectors;
 
-import de.sirywell.bitvectors.instruction.AccessInstruction;
-import de.sirywell.bitvectors.instruction.Instruction;
-import de.sirywell.bitvectors.instruction.RankInstruction;
-import de.sirywell.bitvectors.instruction.SelectInstruction;
+import de.sirywell.bitvectors.instruction.Instructions;
+import de.sirywell.bitvectors.jfr.ExecuteQueriesEvent;
+import de.sirywell.bitvectors.jfr.LatencyHistogram;
+import de.sirywell.bitvectors.jfr.MapFileEvent;
+import de.sirywell.bitvectors.jfr.ParseBitsEvent;
+import de.sirywell.bitvectors.jfr.ParseInstructionsEvent;
+import de.sirywell.bitvectors.jfr.WriteOutputEvent;
+import de.sirywell.bitvectors.management.BitVectorMetrics;
+
+import javax.management.JMException;
 
 import java.io.IOException;
 import java.lang.foreign.Arena;
@@ -17,116 +23,626 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Arrays;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.LongStream;
 
 public class Main {
     private static final byte NEWLINE = '\n';
+    /**
+     * Runs of instructions shorter than this are executed one by one, as batching them isn't worth the overhead.
+     */
+    private static final int MIN_BATCH_SIZE = Integer.getInteger("ads.batch.min", 16);
+    /**
+     * Whether the bit vector is parsed by multiple threads, each parsing chunks of {@link #PARSE_CHUNK_WORDS} words.
+     */
+    private static final boolean PARALLEL_PARSING = Boolean.getBoolean("ads.parse.parallel");
+    private static final long PARSE_CHUNK_WORDS = 1 << 16;
+    /**
+     * Longer runs of instructions of the same kind are split into multiple batches.
+     */
+    private static final int MAX_BATCH_SIZE = 1 << 16;
+    /**
+     * The arguments and results of batches, reused by all batches of a thread, so running batches doesn't allocate.
+     */
+    private static final ThreadLocal<BatchBuffers> BATCH_BUFFERS = ThreadLocal.withInitial(BatchBuffers::new);
+    /**
+     * The bit vector implementation to use, one of {@code efficient}, {@code interleaved}, {@code rrr}, {@code eliasfano}
+     * and {@code sharded}.
+     */
+    private static final String IMPLEMENTATION = System.getProperty("ads.bitvector", "efficient");
+    private static final int STRESS = Integer.getInteger("ads.stress", 1);
+    /**
+     * The number of threads executing the instructions. The instructions are split into chunks of
+     * {@link #QUERY_CHUNK_SIZE} instructions, which the threads pick up one after another.
+     */
+    private static final int QUERY_THREADS = Integer.getInteger("ads.threads", 1);
+    private static final long QUERY_CHUNK_SIZE = Long.getLong("ads.chunk", 1 << 16);
+    /**
+     * The results are written as text by default, {@code -Dads.output=binary} writes 8 bytes per result instead.
+     */
+    private static final ResultWriter.Format OUTPUT_FORMAT = ResultWriter.Format.valueOf(
+            System.getProperty("ads.output", "text").toUpperCase(Locale.ROOT)
+    );
+
+    /**
+     * With {@code -Dads.memory=hugepages}, large allocations are backed by huge pages if possible.
+     * Additionally, {@code -Dads.numa=interleave} or {@code -Dads.numa=bind} (with {@code -Dads.numa.node=<node>})
+     * select the NUMA policy of such allocations.
+     *
+     * @see HugePageArena
+     */
+    private static final String MEMORY = System.getProperty("ads.memory", "default");
+    private static final HugePageArena.NumaPolicy NUMA_POLICY = HugePageArena.NumaPolicy.valueOf(
+            System.getProperty("ads.numa", "none").toUpperCase(Locale.ROOT)
+    );
+    private static final int NUMA_NODE = Integer.getInteger("ads.numa.node", 0);
+    /**
+     * With {@code -Dads.latency.sample=<n>}, the latency of every n-th query is recorded in a histogram per operation,
+     * which is emitted as JFR events after all queries ran. Batched queries record their average latency.
+     * The default of 0 disables sampling, and as the rate is a constant, the JIT removes the sampling code entirely.
+     *
+     * @see LatencyHistogram
+     */
+    private static final int LATENCY_SAMPLE_RATE = Integer.getInteger("ads.latency.sample", 0);
+    /**
+     * The latency histograms, indexed by opcode.
+     */
+    private static final LatencyHistogram[] LATENCIES = LATENCY_SAMPLE_RATE > 0 ? createLatencyHistograms() : null;
+    /**
+     * With {@code -Dads.metrics=true}, the queries are counted per operation and bit, and the counters and the memory
+     * usage of the bit vector are exposed as platform MBean. By default, the bit vector is queried directly.
+     *
+     * @see MeteredBitVector
+     */
+    static final boolean METRICS = Boolean.getBoolean("ads.metrics");
+    /**
+     * With {@code -Dads.stream=true}, the instructions are parsed, run and written in windows of
+     * {@link #STREAM_WINDOW_SIZE} instructions, and the three stages run concurrently on different windows.
+     * Only {@link #STREAM_WINDOWS} windows exist at a time, so the memory used for instructions and results
+     * doesn't depend on the number of instructions. {@link #STRESS} is ignored in this mode.
+     */
+    private static final boolean STREAMING = Boolean.getBoolean("ads.stream");
+    private static final int STREAM_WINDOW_SIZE = Integer.getInteger("ads.stream.window", 1 << 20);
+    /**
+     * One window per stage, and one more so the parser can run ahead while the writer is busy.
+     */
+    private static final int STREAM_WINDOWS = 4;
 
     static volatile Object escape;
     public static void main(String[] args) throws IOException {
         assert args.length == 2 : "usage: <input_file> <output_file>";
         Path inputFile = Path.of(args[0]);
         Path outputFile = Path.of(args[1]);
-        try (Arena arena = Arena.ofConfined()) {
-            MemorySegment bitVectorSegment;
-            Instruction[] instructions;
+        // if an index file is given and exists, the bit vector isn't parsed and built but mapped from that file
+        String indexProperty = System.getProperty("ads.index");
+        Path indexFile = indexProperty == null ? null : Path.of(indexProperty);
+        boolean prebuilt = indexFile != null && Files.exists(indexFile);
+        // the lookup data might be built and queried in parallel, so the memory must be accessible from other threads
+        try (Arena arena = createArena()) {
+            MemorySegment bitVectorSegment = null;
+            MemorySegment file;
+            Instructions instructions = null;
+            long n;
+            long instructionsStart;
             long vecLen;
             try (FileChannel fileChannel = FileChannel.open(inputFile, StandardOpenOption.READ)) {
-                MemorySegment file = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), arena);
+                MapFileEvent mapEvent = new MapFileEvent();
+                mapEvent.begin();
+                file = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), arena);
+                mapEvent.size = file.byteSize();
+                mapEvent.commit();
                 long firstLineEnd = MemorySupport.indexOf(file, 0, NEWLINE);
-                long n = MemorySupport.parseLong(file, 0, firstLineEnd, 10);
+                n = MemorySupport.parseLong(file, 0, firstLineEnd, 10);
                 long vecStart = firstLineEnd + 1;
                 // we can either go through the file twice
                 // or dynamically increase the size of the bitvector...
                 // let's do the former
                 long vecEnd = MemorySupport.indexOf(file, vecStart, NEWLINE);
                 vecLen = vecEnd - firstLineEnd - 1;
-                bitVectorSegment = loadBitVector(vecLen, arena, vecEnd, vecStart, file);
-                long instructionsStart = vecEnd + 1;
-                instructions = parseInstructions(instructionsStart, file, n);
-                file.unload();
+                if (!prebuilt) {
+                    ParseBitsEvent parseBitsEvent = new ParseBitsEvent();
+                    parseBitsEvent.begin();
+                    bitVectorSegment = loadBitVector(vecLen, arena, vecEnd, vecStart, file);
+                    parseBitsEvent.bits = vecLen;
+                    parseBitsEvent.commit();
+                }
+                instructionsStart = vecEnd + 1;
+                // when streaming, the instructions are parsed window by window while running them
+                if (!STREAMING) {
+                    ParseInstructionsEvent parseInstructionsEvent = new ParseInstructionsEvent();
+                    parseInstructionsEvent.begin();
+                    instructions = parseInstructions(instructionsStart, file, n, arena);
+                    parseInstructionsEvent.instructions = n;
+                    parseInstructionsEvent.commit();
+                    file.unload();
+                }
             }
             Instant start = Instant.now();
-            BitVector bitVector = EfficientBitVector.createEfficientBitVector(arena, bitVectorSegment, vecLen);
-            long[] results = runAll(instructions, bitVector);
-            Duration duration = Duration.between(start, Instant.now());
-            String collect = Arrays.stream(results)
-                    .mapToObj(String::valueOf)
-                    .collect(Collectors.joining(System.lineSeparator()));
-            Files.writeString(outputFile, collect);
-            System.out.println("RESULT name=hannes_greule time=" + duration.toMillis() + " space=" + bitVector.memoryUsage() * Byte.SIZE);
-        }
-    }
-
-    private static long[] runAll(Instruction[] instructions, BitVector bitVector) {
-        long[] results = new long[instructions.length];
-        for (int stress = 0; stress < Integer.getInteger("ads.stress", 1); stress++) {
-            for (int i = 0; i < instructions.length; i++) {
-                // we don't use a polymorphic method here because C2 only inlines call sites with <= 2 types
-                // ref: https://shipilev.net/blog/2015/black-magic-method-dispatch/
-                // but we want optimizations to recognize bitVector as constant
-                results[i] = switch (instructions[i]) {
-                    case AccessInstruction(long index) -> bitVector.access(index);
-                    case RankInstruction(long index, int bit) -> bitVector.rank(index, bit);
-                    case SelectInstruction(long rank, int bit) -> bitVector.select(rank, bit);
-                };
-            }
-            escape = results;
+            BitVector bitVector;
+            if (prebuilt) {
+                // sharded bit vectors are stored as a directory of index files
+                bitVector = Files.isDirectory(indexFile) ? ShardedBitVector.map(indexFile, arena) : IndexFile.map(indexFile, arena);
+                if (bitVector.bitSize() != vecLen) {
+                    throw new IOException("index file " + indexFile + " does not match the input file");
+                }
+            } else {
+                bitVector = createBitVector(arena, bitVectorSegment, vecLen);
+            }
+            BitVector queried = METRICS ? registerMetrics(bitVector, inputFile) : bitVector;
+            Instant queryStart = Instant.now();
+            MemorySegment results = null;
+            if (STREAMING) {
+                // the results are written while running the instructions
+                runStreaming(file, instructionsStart, n, queried, outputFile, arena);
+            } else {
+                ExecuteQueriesEvent executeEvent = new ExecuteQueriesEvent();
+                executeEvent.begin();
+                results = runAll(instructions, queried, arena);
+                executeEvent.instructions = n * STRESS;
+                executeEvent.threads = QUERY_THREADS;
+                executeEvent.commit();
+            }
+            Instant end = Instant.now();
+            if (LATENCY_SAMPLE_RATE > 0) {
+                for (LatencyHistogram histogram : LATENCIES) {
+                    if (histogram != null) {
+                        histogram.commit();
+                    }
+                }
+            }
+            Duration duration = Duration.between(start, end);
+            Duration queryDuration = Duration.between(queryStart, end);
+            if (indexFile != null && !prebuilt) {
+                if (bitVector instanceof EfficientBitVector efficientBitVector) {
+                    IndexFile.write(efficientBitVector, indexFile);
+                } else if (bitVector instanceof ShardedBitVector shardedBitVector) {
+                    shardedBitVector.write(indexFile);
+                } else {
+                    throw new IllegalStateException("index files are only supported for the efficient and the sharded bit vector");
+                }
+            }
+            if (!STREAMING) {
+                WriteOutputEvent writeEvent = new WriteOutputEvent();
+                writeEvent.begin();
+                try (ResultWriter writer = ResultWriter.open(outputFile, OUTPUT_FORMAT)) {
+                    writer.write(results, n);
+                }
+                writeEvent.results = n;
+                writeEvent.commit();
+            }
+            // instructions per second and thread
+            double querySeconds = Math.max(1, queryDuration.toNanos()) / 1e9;
+            long throughput = (long) ((double) n * (STREAMING ? 1 : STRESS) / querySeconds / QUERY_THREADS);
+            System.out.println("RESULT name=hannes_greule time=" + duration.toMillis() + " space=" + bitVector.memoryUsage() * Byte.SIZE
+                               + " threads=" + QUERY_THREADS + " throughput=" + throughput
+                               + " kernel=" + BitCountKernel.SELECTED.name()
+                               + " memory=" + (arena instanceof HugePageArena hugePageArena ? hugePageArena.policy() : "default"));
+        }
+    }
+
+    private static Arena createArena() {
+        return switch (MEMORY) {
+            case "default" -> Arena.ofShared();
+            case "hugepages" -> new HugePageArena(NUMA_POLICY, NUMA_NODE);
+            default -> throw new IllegalArgumentException("unknown memory policy " + MEMORY);
+        };
+    }
+
+    static MeteredBitVector registerMetrics(BitVector bitVector, Path inputFile) {
+        MeteredBitVector metered = new MeteredBitVector(bitVector);
+        try {
+            BitVectorMetrics.register(inputFile.getFileName().toString(), metered);
+        } catch (JMException e) {
+            throw new IllegalStateException("failed to register the metrics", e);
+        }
+        return metered;
+    }
+
+    private static LatencyHistogram[] createLatencyHistograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[Instructions.SELECT_1 + 1];
+        histograms[Instructions.ACCESS] = new LatencyHistogram("access");
+        histograms[Instructions.RANK_0] = new LatencyHistogram("rank0");
+        histograms[Instructions.RANK_1] = new LatencyHistogram("rank1");
+        histograms[Instructions.SELECT_0] = new LatencyHistogram("select0");
+        histograms[Instructions.SELECT_1] = new LatencyHistogram("select1");
+        return histograms;
+    }
+
+    private static BitVector createBitVector(Arena arena, MemorySegment segment, long bitSize) {
+        return switch (IMPLEMENTATION) {
+            // the arena is shared, so large bit vectors can be built in parallel
+            case "efficient" -> EfficientBitVector.createEfficientBitVector(
+                    arena, segment, bitSize, EfficientBitVector.buildParallelism(bitSize)
+            );
+            case "interleaved" -> InterleavedBitVector.createInterleavedBitVector(arena, segment, bitSize);
+            case "rrr" -> RrrBitVector.createRrrBitVector(arena, segment, bitSize);
+            case "eliasfano" -> EliasFanoBitVector.createEliasFanoBitVector(arena, segment, bitSize);
+            case "sharded" -> ShardedBitVector.createShardedBitVector(arena, segment, bitSize);
+            default -> throw new IllegalArgumentException("unknown bit vector implementation " + IMPLEMENTATION);
+        };
+    }
+
+    private static MemorySegment runAll(Instructions instructions, BitVector bitVector, Arena arena) {
+        MemorySegment results = arena.allocate(ValueLayout.JAVA_LONG, instructions.size());
+        try (ExecutorService executor = createQueryExecutor()) {
+            for (int stress = 0; stress < STRESS; stress++) {
+                if (executor != null) {
+                    runParallel(instructions, bitVector, results, executor);
+                } else {
+                    runRange(instructions, 0, instructions.size(), bitVector, results);
+                }
+                escape = results;
+            }
         }
         return results;
     }
 
+    /**
+     * {@return the executor running the instructions on {@link #QUERY_THREADS} threads, or {@code null} if they
+     * are run on the calling thread} The executor is reused for all instructions, so no threads are started per run.
+     */
+    private static ExecutorService createQueryExecutor() {
+        return QUERY_THREADS > 1 ? Executors.newFixedThreadPool(QUERY_THREADS) : null;
+    }
+
+    /**
+     * Instructions and their results that are passed between the stages of the streaming pipeline.
+     */
+    private static final class Window {
+        /**
+         * Marks the end of the stream.
+         */
+        static final Window END = new Window(null, null);
+
+        final Instructions instructions;
+        final MemorySegment results;
+        long size;
+
+        Window(Instructions instructions, MemorySegment results) {
+            this.instructions = instructions;
+            this.results = results;
+        }
+    }
+
+    /**
+     * Parses, runs and writes the instructions window by window. Parsing and writing run on their own threads,
+     * connected to the thread running the instructions by bounded queues. Windows are recycled once written,
+     * so at most {@link #STREAM_WINDOWS} windows are in flight, and a stage blocks if it runs too far ahead.
+     * <p/>
+     * If a stage fails, the remaining stages drain their queues without processing the windows, so no stage blocks
+     * forever, and the first failure is rethrown.
+     */
+    private static void runStreaming(
+            MemorySegment file,
+            long instructionsStart,
+            long n,
+            BitVector bitVector,
+            Path outputFile,
+            Arena arena
+    ) throws IOException {
+        BlockingQueue<Window> free = new ArrayBlockingQueue<>(STREAM_WINDOWS);
+        BlockingQueue<Window> parsed = new ArrayBlockingQueue<>(STREAM_WINDOWS + 1);
+        BlockingQueue<Window> executed = new ArrayBlockingQueue<>(STREAM_WINDOWS + 1);
+        for (int i = 0; i < STREAM_WINDOWS; i++) {
+            free.add(new Window(Instructions.allocate(arena, STREAM_WINDOW_SIZE), arena.allocate(ValueLayout.JAVA_LONG, STREAM_WINDOW_SIZE)));
+        }
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        try (ExecutorService stages = Executors.newFixedThreadPool(2);
+             ExecutorService executor = createQueryExecutor()) {
+            stages.execute(() -> {
+                try {
+                    long lineStart = instructionsStart;
+                    for (long from = 0; from < n && failure.get() == null; from += STREAM_WINDOW_SIZE) {
+                        Window window = free.take();
+                        window.size = Math.min(STREAM_WINDOW_SIZE, n - from);
+                        ParseInstructionsEvent event = new ParseInstructionsEvent();
+                        event.begin();
+                        long windowStart = lineStart;
+                        lineStart = parseInstructions(file, lineStart, window.instructions, window.size);
+                        // the parsed part of the file isn't needed anymore
+                        file.asSlice(windowStart, Math.min(lineStart, file.byteSize()) - windowStart).unload();
+                        event.instructions = window.size;
+                        event.commit();
+                        parsed.put(window);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    putEnd(parsed);
+                }
+            });
+            stages.execute(() -> {
+                boolean ended = false;
+                try (ResultWriter writer = ResultWriter.open(outputFile, OUTPUT_FORMAT)) {
+                    for (Window window = executed.take(); window != Window.END; window = executed.take()) {
+                        if (failure.get() == null) {
+                            WriteOutputEvent event = new WriteOutputEvent();
+                            event.begin();
+                            writer.write(window.results, window.size);
+                            event.results = window.size;
+                            event.commit();
+                        }
+                        free.put(window);
+                    }
+                    ended = true;
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                    if (!ended) {
+                        // keep recycling the windows, so the other stages don't block
+                        drain(executed, free);
+                    }
+                }
+            });
+            try {
+                for (Window window = parsed.take(); window != Window.END; window = parsed.take()) {
+                    if (failure.get() == null) {
+                        ExecuteQueriesEvent event = new ExecuteQueriesEvent();
+                        event.begin();
+                        Instructions instructions = new Instructions(
+                                window.instructions.opcodes(), window.instructions.arguments(), window.size
+                        );
+                        if (executor != null) {
+                            runParallel(instructions, bitVector, window.results, executor);
+                        } else {
+                            runRange(instructions, 0, window.size, bitVector, window.results);
+                        }
+                        event.instructions = window.size;
+                        event.threads = QUERY_THREADS;
+                        event.commit();
+                    }
+                    executed.put(window);
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+                drain(parsed, free);
+            } finally {
+                putEnd(executed);
+            }
+        }
+        Throwable e = failure.get();
+        if (e instanceof IOException ioException) {
+            throw ioException;
+        } else if (e != null) {
+            throw new IllegalStateException("failed to stream instructions", e);
+        }
+    }
+
+    /**
+     * Moves all windows from {@code from} to {@code to} until the end of the stream.
+     */
+    private static void drain(BlockingQueue<Window> from, BlockingQueue<Window> to) {
+        try {
+            for (Window window = from.take(); window != Window.END; window = from.take()) {
+                to.put(window);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void putEnd(BlockingQueue<Window> queue) {
+        try {
+            queue.put(Window.END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs all instructions on the {@link #QUERY_THREADS} threads of the executor, and waits until they are done.
+     * As the bit vector isn't modified, the threads don't need to coordinate, besides picking the next chunk.
+     * Each thread writes the results of its chunks to their fixed offsets.
+     */
+    private static void runParallel(Instructions instructions, BitVector bitVector, MemorySegment results, ExecutorService executor) {
+        long chunks = Math.ceilDiv(instructions.size(), QUERY_CHUNK_SIZE);
+        AtomicLong nextChunk = new AtomicLong();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < QUERY_THREADS; thread++) {
+            futures.add(executor.submit(() -> {
+                for (long chunk = nextChunk.getAndIncrement(); chunk < chunks; chunk = nextChunk.getAndIncrement()) {
+                    long from = chunk * QUERY_CHUNK_SIZE;
+                    long to = Math.min(instructions.size(), from + QUERY_CHUNK_SIZE);
+                    runRange(instructions, from, to, bitVector, results);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("failed to run instructions", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while running instructions", e);
+            }
+        }
+    }
+
+    static void runRange(Instructions instructions, long from, long to, BitVector bitVector, MemorySegment results) {
+        for (long start = from; start < to; ) {
+            long end = runEnd(instructions, start, to);
+            if (end - start < MIN_BATCH_SIZE) {
+                runEach(instructions, start, end, bitVector, results);
+            } else {
+                runBatch(instructions, start, end, bitVector, results);
+            }
+            start = end;
+        }
+    }
+
+    private static void runEach(Instructions instructions, long start, long end, BitVector bitVector, MemorySegment results) {
+        for (long i = start; i < end; i++) {
+            byte opcode = instructions.opcode(i);
+            long argument = instructions.argument(i);
+            long result;
+            if (LATENCY_SAMPLE_RATE > 0 && i % LATENCY_SAMPLE_RATE == 0) {
+                long startNanos = System.nanoTime();
+                result = execute(bitVector, opcode, argument, i);
+                LATENCIES[opcode].record(System.nanoTime() - startNanos, 1);
+            } else {
+                result = execute(bitVector, opcode, argument, i);
+            }
+            results.setAtIndex(ValueLayout.JAVA_LONG, i, result);
+        }
+    }
+
+    private static long execute(BitVector bitVector, byte opcode, long argument, long i) {
+        // we don't use a polymorphic method here because C2 only inlines call sites with <= 2 types
+        // ref: https://shipilev.net/blog/2015/black-magic-method-dispatch/
+        // but we want optimizations to recognize bitVector as constant
+        return switch (opcode) {
+            case Instructions.ACCESS -> bitVector.access(argument);
+            case Instructions.RANK_0 -> bitVector.rank(argument, 0);
+            case Instructions.RANK_1 -> bitVector.rank(argument, 1);
+            case Instructions.SELECT_0 -> bitVector.select(argument, 0);
+            case Instructions.SELECT_1 -> bitVector.select(argument, 1);
+            default -> throw new IllegalStateException("illegal opcode at " + i);
+        };
+    }
+
+    /**
+     * Runs instructions of the same kind as a batch. The results are stored in their original order.
+     */
+    private static void runBatch(Instructions instructions, long start, long end, BitVector bitVector, MemorySegment results) {
+        int length = (int) (end - start);
+        BatchBuffers buffers = BATCH_BUFFERS.get();
+        buffers.ensureCapacity(length);
+        long[] arguments = buffers.arguments;
+        long[] out = buffers.results;
+        MemorySegment.copy(instructions.arguments(), ValueLayout.JAVA_LONG, start * Long.BYTES, arguments, 0, length);
+        byte opcode = instructions.opcode(start);
+        long startNanos = LATENCY_SAMPLE_RATE > 0 ? System.nanoTime() : 0;
+        switch (opcode) {
+            case Instructions.ACCESS -> bitVector.accessBatch(arguments, length, out);
+            case Instructions.RANK_0, Instructions.RANK_1 -> bitVector.rankBatch(arguments, length, Instructions.bit(opcode), out);
+            case Instructions.SELECT_0, Instructions.SELECT_1 -> bitVector.selectBatch(arguments, length, Instructions.bit(opcode), out);
+            default -> throw new IllegalStateException("illegal opcode at " + start);
+        }
+        if (LATENCY_SAMPLE_RATE > 0) {
+            // the number of sampled instructions in [start, end)
+            long sampled = Math.ceilDiv(end, LATENCY_SAMPLE_RATE) - Math.ceilDiv(start, LATENCY_SAMPLE_RATE);
+            if (sampled > 0) {
+                LATENCIES[opcode].record((System.nanoTime() - startNanos) / length, sampled);
+            }
+        }
+        MemorySegment.copy(out, 0, results, ValueLayout.JAVA_LONG, start * Long.BYTES, length);
+    }
+
+    /**
+     * The arrays only grow, up to {@link #MAX_BATCH_SIZE} elements.
+     */
+    private static final class BatchBuffers {
+        long[] arguments = new long[0];
+        long[] results = new long[0];
+
+        void ensureCapacity(int length) {
+            if (arguments.length < length) {
+                arguments = new long[length];
+                results = new long[length];
+            }
+        }
+    }
+
+    /**
+     * {@return the (exclusive) end of the run of instructions with the same opcode beginning at {@code start}}
+     * A run is at most {@link #MAX_BATCH_SIZE} instructions long, and doesn't exceed {@code to}.
+     */
+    private static long runEnd(Instructions instructions, long start, long to) {
+        byte opcode = instructions.opcode(start);
+        long limit = Math.min(to, start + MAX_BATCH_SIZE);
+        long end = start + 1;
+        while (end < limit && instructions.opcode(end) == opcode) {
+            end++;
+        }
+        return end;
+    }
+
     private static MemorySegment loadBitVector(long vecLen, Arena arena, long vecEnd, long vecStart, MemorySegment file) {
         // alignment chosen in hope for most efficient loads
-        SequenceLayout layout = MemoryLayout.sequenceLayout(Math.ceilDiv(vecLen, 64), ValueLayout.JAVA_LONG)
+        long words = Math.ceilDiv(vecLen, 64);
+        SequenceLayout layout = MemoryLayout.sequenceLayout(words, ValueLayout.JAVA_LONG)
                 .withByteAlignment(64);
         MemorySegment bitVectorSegment = arena.allocate(layout);
-        for (long l = 0; l < vecLen; l += 64) {
-            long end = Math.min(vecEnd, vecStart + l + 64);
-            long next = MemorySupport.parseLong(file, vecStart + l, end, 2);
-            next = Long.reverse(next);
-            if (end == vecEnd) {
-                next >>>= (64 - vecLen);
-            }
-            // 7 6 5 4 3 2 1 0 15 14 13 12 11 10 9 8 ... 63 62 61 60 59 58 57 56
-            bitVectorSegment.set(ValueLayout.JAVA_LONG, l / 8, next);
+        if (PARALLEL_PARSING) {
+            long chunks = Math.ceilDiv(words, PARSE_CHUNK_WORDS);
+            LongStream.range(0, chunks).parallel().forEach(chunk -> {
+                long from = chunk * PARSE_CHUNK_WORDS;
+                parseWords(file, vecStart, vecEnd, bitVectorSegment, from, Math.min(words, from + PARSE_CHUNK_WORDS));
+            });
+        } else {
+            parseWords(file, vecStart, vecEnd, bitVectorSegment, 0, words);
         }
         return bitVectorSegment;
     }
 
-    private static Instruction[] parseInstructions(long instructionsStart, MemorySegment file, long n) {
-        Instruction[] instructions = new Instruction[Math.toIntExact(n)];
-        long lineStart = instructionsStart;
-        for (int i = 0; i < n; i++) {
+    /**
+     * Parses the words {@code [fromWord, toWord)} of the bit vector, each consisting of 64 characters.
+     */
+    private static void parseWords(
+            MemorySegment file,
+            long vecStart,
+            long vecEnd,
+            MemorySegment bitVectorSegment,
+            long fromWord,
+            long toWord
+    ) {
+        for (long word = fromWord; word < toWord; word++) {
+            long start = vecStart + word * 64;
+            long end = Math.min(vecEnd, start + 64);
+            // 7 6 5 4 3 2 1 0 15 14 13 12 11 10 9 8 ... 63 62 61 60 59 58 57 56
+            bitVectorSegment.set(ValueLayout.JAVA_LONG, word * 8, MemorySupport.parseBits(file, start, end));
+        }
+    }
+
+    private static Instructions parseInstructions(long instructionsStart, MemorySegment file, long n, Arena arena) {
+        Instructions instructions = Instructions.allocate(arena, n);
+        parseInstructions(file, instructionsStart, instructions, n);
+        return instructions;
+    }
+
+    /**
+     * Parses {@code n} instructions, the first one starting at {@code lineStart}, into the given instructions.
+     *
+     * @return the start of the line after the last parsed instruction
+     */
+    private static long parseInstructions(MemorySegment file, long lineStart, Instructions instructions, long n) {
+        for (long i = 0; i < n; i++) {
+            long end = MemorySupport.indexOf(file, lineStart, NEWLINE);
+            if (end == -1) {
+                // the last line doesn't need to end with a newline
+                end = file.byteSize();
+            }
             switch (file.getAtIndex(ValueLayout.JAVA_BYTE, lineStart)) {
                 case 'a' -> {
-                    long offset = lineStart + 7;
-                    long end = MemorySupport.indexOf(file, offset, NEWLINE);
-                    long index = MemorySupport.parseLong(file, offset, end, 10);
-                    instructions[i] = new AccessInstruction(index);
-                    lineStart = end + 1;
+                    long index = MemorySupport.parseLong(file, lineStart + 7, end, 10);
+                    instructions.set(i, Instructions.ACCESS, index);
                 }
                 case 'r' -> {
                     long offset = lineStart + 5;
                     int bit = (int) MemorySupport.parseLong(file, offset, offset + 1, 2);
-                    offset += 2;
-                    long end = MemorySupport.indexOf(file, offset, NEWLINE);
-                    long index = MemorySupport.parseLong(file, offset, end, 10);
-                    instructions[i] = new RankInstruction(index, bit);
-                    lineStart = end + 1;
+                    long index = MemorySupport.parseLong(file, offset + 2, end, 10);
+                    instructions.set(i, Instructions.rank(bit), index);
                 }
                 case 's' -> {
                     long offset = lineStart + 7;
                     int bit = (int) MemorySupport.parseLong(file, offset, offset + 1, 2);
-                    offset += 2;
-                    long end = MemorySupport.indexOf(file, offset, NEWLINE);
-                    long index = MemorySupport.parseLong(file, offset, end, 10);
-                    instructions[i] = new SelectInstruction(index, bit);
-                    lineStart = end + 1;
+                    long rank = MemorySupport.parseLong(file, offset + 2, end, 10);
+                    instructions.set(i, Instructions.select(bit), rank);
                 }
+                default -> throw new IllegalArgumentException("unknown instruction at offset " + lineStart);
             }
+            lineStart = end + 1;
         }
-        return instructions;
+        return lineStart;
     }
-}
\ No newline at end of file
+}
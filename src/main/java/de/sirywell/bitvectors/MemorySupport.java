@@ -1,16 +1,42 @@
 package de.sirywell.bitvectors;
 
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import static de.sirywell.bitvectors.SimdSupport.BYTE_SPECIES;
 
 public final class MemorySupport {
+    /**
+     * The layout of words in bit vector data: bit {@code i} of a word is bit {@code i & 7} of byte {@code i / 8}.
+     */
+    static final ValueLayout.OfLong WORD_LAYOUT = ValueLayout.JAVA_LONG_UNALIGNED
+            .withOrder(ByteOrder.LITTLE_ENDIAN);
+    /**
+     * The species used to parse bits. A mask of it must fit into a long.
+     */
+    private static final VectorSpecies<Byte> BITS_SPECIES = BYTE_SPECIES.length() <= Long.SIZE
+            ? BYTE_SPECIES
+            : ByteVector.SPECIES_512;
 
     private MemorySupport() {
 
     }
 
     public static long indexOf(MemorySegment segment, long start, byte b) {
-        for (long l = start; l < segment.byteSize(); l++) {
+        long l = start;
+        for (; l + BYTE_SPECIES.length() <= segment.byteSize(); l += BYTE_SPECIES.length()) {
+            VectorMask<Byte> matches = ByteVector.fromMemorySegment(BYTE_SPECIES, segment, l, ByteOrder.nativeOrder())
+                    .eq(b);
+            if (matches.anyTrue()) {
+                return l + matches.firstTrue();
+            }
+        }
+        for (; l < segment.byteSize(); l++) {
             if (segment.getAtIndex(ValueLayout.JAVA_BYTE, l) == b) {
                 return l;
             }
@@ -27,4 +53,80 @@ public final class MemorySupport {
         }
         return value;
     }
+
+    /**
+     * Parses up to 64 {@code '0'} and {@code '1'} characters into a word.
+     * The first character is stored in the lowest bit of the result, the last character in the highest bit.
+     */
+    public static long parseBits(MemorySegment segment, long start, long end) {
+        assert end - start <= Long.SIZE : "can't parse more than 64 bits into a long";
+        long word = 0;
+        if (end - start == Long.SIZE) {
+            for (long offset = start; offset < end; offset += BITS_SPECIES.length()) {
+                ByteVector chars = ByteVector.fromMemorySegment(BITS_SPECIES, segment, offset, ByteOrder.nativeOrder());
+                word |= chars.eq((byte) '1').toLong() << (offset - start);
+            }
+        } else {
+            for (long offset = start; offset < end; offset += BITS_SPECIES.length()) {
+                VectorMask<Byte> loadMask = BITS_SPECIES.indexInRange(offset, end);
+                ByteVector chars = ByteVector.fromMemorySegment(BITS_SPECIES, segment, offset, ByteOrder.nativeOrder(), loadMask);
+                word |= chars.eq((byte) '1').toLong() << (offset - start);
+            }
+        }
+        return word;
+    }
+
+    /**
+     * Reads the 64 bits starting at bit {@code wordIndex * 64} of the segment, independent of the native byte order.
+     * Bit {@code i} of the segment is bit {@code i & 7} of byte {@code i / 8}.
+     * Bytes beyond the end of the segment are read as 0.
+     */
+    public static long getWord(MemorySegment segment, long wordIndex) {
+        long offset = wordIndex * Long.BYTES;
+        if (offset + Long.BYTES <= segment.byteSize()) {
+            return segment.get(WORD_LAYOUT, offset);
+        }
+        long word = 0;
+        for (long l = offset; l < segment.byteSize(); l++) {
+            word |= Byte.toUnsignedLong(segment.get(ValueLayout.JAVA_BYTE, l)) << ((l - offset) * Byte.SIZE);
+        }
+        return word;
+    }
+
+    /**
+     * Reads {@code width} bits, starting at bit {@code bitIndex} of the segment, into the lowest bits of the result.
+     *
+     * @see #getWord(MemorySegment, long)
+     */
+    public static long getBits(MemorySegment segment, long bitIndex, int width) {
+        long wordIndex = bitIndex / Long.SIZE;
+        int shift = (int) (bitIndex % Long.SIZE);
+        long value = getWord(segment, wordIndex) >>> shift;
+        if (shift + width > Long.SIZE) {
+            value |= getWord(segment, wordIndex + 1) << (Long.SIZE - shift);
+        }
+        return width == Long.SIZE ? value : value & ((1L << width) - 1);
+    }
+
+    /**
+     * Writes the lowest {@code width} bits of {@code value}, starting at bit {@code bitIndex} of the segment.
+     * The written bits must be 0 before, and the segment must consist of whole words.
+     *
+     * @see #getWord(MemorySegment, long)
+     */
+    public static void setBits(MemorySegment segment, long bitIndex, int width, long value) {
+        if (width == 0) {
+            return;
+        }
+        if (width < Long.SIZE) {
+            value &= (1L << width) - 1;
+        }
+        long wordIndex = bitIndex / Long.SIZE;
+        int shift = (int) (bitIndex % Long.SIZE);
+        segment.set(WORD_LAYOUT, wordIndex * Long.BYTES, getWord(segment, wordIndex) | (value << shift));
+        if (shift + width > Long.SIZE) {
+            long next = getWord(segment, wordIndex + 1) | (value >>> (Long.SIZE - shift));
+            segment.set(WORD_LAYOUT, (wordIndex + 1) * Long.BYTES, next);
+        }
+    }
 }
@@ -0,0 +1,138 @@
+package de.sirywell.bitvectors;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * A bit vector that counts the queries it serves, split by operation and bit, and forwards them to another bit vector.
+ * The counters are striped, so counting scales with the number of querying threads.
+ * <p/>
+ * Batches are counted once per batch with their size. Queries derived from other queries, like
+ * {@link #count(long, long, int)} or {@link #nextBit(long, int)}, are forwarded without being counted.
+ */
+public final class MeteredBitVector implements BitVector {
+    private final BitVector delegate;
+    private final LongAdder[] rankCounters = {new LongAdder(), new LongAdder()};
+    private final LongAdder[] selectCounters = {new LongAdder(), new LongAdder()};
+    private final LongAdder accessCounter = new LongAdder();
+
+    public MeteredBitVector(BitVector delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * {@return the bit vector the queries are forwarded to}
+     */
+    public BitVector delegate() {
+        return delegate;
+    }
+
+    /**
+     * {@return the number of rank queries for the given bit}
+     */
+    public long rankCount(int bit) {
+        return rankCounters[bit].sum();
+    }
+
+    /**
+     * {@return the number of select queries for the given bit}
+     */
+    public long selectCount(int bit) {
+        return selectCounters[bit].sum();
+    }
+
+    /**
+     * {@return the number of access queries}
+     */
+    public long accessCount() {
+        return accessCounter.sum();
+    }
+
+    /**
+     * Sets all counters to 0. Queries running concurrently might or might not be counted.
+     */
+    public void resetCounters() {
+        for (int bit = 0; bit <= 1; bit++) {
+            rankCounters[bit].reset();
+            selectCounters[bit].reset();
+        }
+        accessCounter.reset();
+    }
+
+    @Override
+    public long rank(long index, int bit) {
+        rankCounters[bit].increment();
+        return delegate.rank(index, bit);
+    }
+
+    @Override
+    public long select(long rank, int bit) {
+        selectCounters[bit].increment();
+        return delegate.select(rank, bit);
+    }
+
+    @Override
+    public int access(long index) {
+        accessCounter.increment();
+        return delegate.access(index);
+    }
+
+    @Override
+    public void rankBatch(long[] indices, int length, int bit, long[] out) {
+        rankCounters[bit].add(length);
+        delegate.rankBatch(indices, length, bit, out);
+    }
+
+    @Override
+    public void selectBatch(long[] ranks, int length, int bit, long[] out) {
+        selectCounters[bit].add(length);
+        delegate.selectBatch(ranks, length, bit, out);
+    }
+
+    @Override
+    public void accessBatch(long[] indices, int length, long[] out) {
+        accessCounter.add(length);
+        delegate.accessBatch(indices, length, out);
+    }
+
+    @Override
+    public long count(long from, long to, int bit) {
+        return delegate.count(from, to, bit);
+    }
+
+    @Override
+    public long nextBit(long from, int bit) {
+        return delegate.nextBit(from, bit);
+    }
+
+    @Override
+    public long previousBit(long from, int bit) {
+        return delegate.previousBit(from, bit);
+    }
+
+    @Override
+    public void forEachSetBit(LongConsumer action) {
+        delegate.forEachSetBit(action);
+    }
+
+    @Override
+    public long bitSize() {
+        return delegate.bitSize();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return delegate.memoryUsage();
+    }
+
+    @Override
+    public BitVectorStats stats() {
+        return delegate.stats();
+    }
+
+    @Override
+    public void print(PrintStream output) {
+        delegate.print(output);
+    }
+}
@@ -9,6 +9,7 @@ import java.io.PrintStream;
 import java.io.StringWriter;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
+import java.util.List;
 
 import static java.nio.ByteOrder.nativeOrder;
 
@@ -72,6 +73,11 @@ public record NaiveBitVector(MemorySegment segment, long bitSize) implements Bit
         return segment.byteSize();
     }
 
+    @Override
+    public BitVectorStats stats() {
+        return new BitVectorStats(bitSize, List.of(new BitVectorStats.Component("segment", segment.byteSize())));
+    }
+
     @Override
     public void print(PrintStream output) {
         for (long l = 0; l < bitSize; l++) {
@@ -0,0 +1,92 @@
+package de.sirywell.bitvectors;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The binary protocol between the {@link QueryServer} and its clients. As clients connect through a Unix domain
+ * socket, they run on the same machine, so all values are stored in the native byte order.
+ * <p/>
+ * After accepting a connection, the server sends a greeting of {@value #GREETING_SIZE} bytes: the magic number and
+ * the version as ints, then the bit size and the number of 1s of the bit vector as longs.
+ * <p/>
+ * Then, the client sends request frames, and the server answers each of them with a response frame, in order.
+ * A client doesn't need to wait for a response before sending the next request, so requests can be pipelined.
+ * <ul>
+ *     <li>A request frame consists of the number of queries {@code n} as int, 4 bytes of padding,
+ *     {@code n} arguments as longs and {@code n} opcodes as bytes, see
+ *     {@link de.sirywell.bitvectors.instruction.Instructions} for the opcodes.</li>
+ *     <li>A response frame consists of the number of results {@code n} as int, 4 bytes of padding
+ *     and {@code n} results as longs. If the request was invalid, {@code n} is a negative error code instead,
+ *     and the server closes the connection.</li>
+ * </ul>
+ */
+final class QueryProtocol {
+    static final int MAGIC = 0x4144_5351; // "ADSQ"
+    static final int VERSION = 1;
+    static final int GREETING_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES;
+    static final int HEADER_SIZE = Long.BYTES;
+    /**
+     * The maximum number of queries in a single frame.
+     */
+    static final int MAX_FRAME_QUERIES = 1 << 16;
+    static final int MAX_REQUEST_SIZE = HEADER_SIZE + MAX_FRAME_QUERIES * (Long.BYTES + Byte.BYTES);
+    static final int MAX_RESPONSE_SIZE = HEADER_SIZE + MAX_FRAME_QUERIES * Long.BYTES;
+
+    /**
+     * The number of queries of the request is negative or exceeds {@link #MAX_FRAME_QUERIES}.
+     */
+    static final int ERROR_FRAME_SIZE = -1;
+    /**
+     * The request contains an unknown opcode.
+     */
+    static final int ERROR_OPCODE = -2;
+    /**
+     * The request contains an access or rank query with an index out of bounds.
+     */
+    static final int ERROR_ARGUMENT = -3;
+
+    private QueryProtocol() {
+
+    }
+
+    /**
+     * {@return a direct buffer of the given capacity in native byte order}
+     */
+    static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Reads exactly {@code length} bytes into the buffer, starting at its position.
+     *
+     * @return {@code false} if the channel reached its end before any byte was read
+     * @throws EOFException if the channel reached its end after some, but not all bytes were read
+     */
+    static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer, int length) throws IOException {
+        buffer.limit(buffer.position() + length);
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() == start) {
+                    return false;
+                }
+                throw new EOFException("connection closed within a frame");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes all bytes between the position and the limit of the buffer.
+     */
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package de.sirywell.bitvectors;
+
+import de.sirywell.bitvectors.instruction.Instructions;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long-running server that maps an index file (or a directory of shards) once, and answers queries sent
+ * through a Unix domain socket, see {@link QueryProtocol} for the protocol.
+ * <p/>
+ * Each connection is served by its own virtual thread. The bit vector is immutable, so all connections
+ * query the same bit vector without any coordination. The queries of a frame are executed like the instructions
+ * of an input file, so runs of the same operation are batched.
+ */
+public final class QueryServer {
+    private final BitVector bitVector;
+    private final long ones;
+
+    QueryServer(BitVector bitVector) {
+        this.bitVector = bitVector;
+        this.ones = bitVector.count(0, bitVector.bitSize(), 1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        assert args.length == 2 : "usage: <index_file_or_directory> <socket_file>";
+        Path index = Path.of(args[0]);
+        Path socket = Path.of(args[1]);
+        // the bit vector is queried by all connection threads
+        try (Arena arena = Arena.ofShared()) {
+            BitVector bitVector = Files.isDirectory(index) ? ShardedBitVector.map(index, arena) : IndexFile.map(index, arena);
+            BitVector queried = Main.METRICS ? Main.registerMetrics(bitVector, index) : bitVector;
+            new QueryServer(queried).serve(socket);
+        }
+    }
+
+    /**
+     * Accepts connections on the given socket file until the process is terminated.
+     * An existing socket file is replaced.
+     */
+    void serve(Path socket) throws IOException {
+        Files.deleteIfExists(socket);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                } catch (IOException ignored) {
+                    // the process terminates anyway
+                }
+            }));
+            System.out.println("listening on " + socket + " bitSize=" + bitVector.bitSize());
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                }
+                executor.submit(() -> {
+                    try (channel) {
+                        handle(channel);
+                    } catch (IOException e) {
+                        System.err.println("connection failed: " + e);
+                    } catch (Throwable e) {
+                        // the future is not kept, so unexpected failures would be lost otherwise
+                        System.err.println("connection failed unexpectedly:");
+                        e.printStackTrace();
+                    }
+                });
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    /**
+     * Sends the greeting and answers request frames until the client closes the connection.
+     */
+    private void handle(SocketChannel channel) throws IOException {
+        ByteBuffer greeting = QueryProtocol.allocate(QueryProtocol.GREETING_SIZE)
+                .putInt(QueryProtocol.MAGIC)
+                .putInt(QueryProtocol.VERSION)
+                .putLong(bitVector.bitSize())
+                .putLong(ones)
+                .flip();
+        QueryProtocol.writeFully(channel, greeting);
+        // the buffers are reused for all frames of this connection
+        ByteBuffer request = QueryProtocol.allocate(QueryProtocol.MAX_REQUEST_SIZE);
+        ByteBuffer response = QueryProtocol.allocate(QueryProtocol.MAX_RESPONSE_SIZE);
+        MemorySegment requestSegment = MemorySegment.ofBuffer(request);
+        MemorySegment responseSegment = MemorySegment.ofBuffer(response);
+        while (true) {
+            request.clear();
+            if (!QueryProtocol.readFully(channel, request, QueryProtocol.HEADER_SIZE)) {
+                return;
+            }
+            int n = request.getInt(0);
+            if (n < 0 || n > QueryProtocol.MAX_FRAME_QUERIES) {
+                sendError(channel, response, QueryProtocol.ERROR_FRAME_SIZE);
+                return;
+            }
+            if (!QueryProtocol.readFully(channel, request, n * (Long.BYTES + Byte.BYTES))) {
+                throw new EOFException("connection closed within a frame");
+            }
+            long argumentsSize = (long) n * Long.BYTES;
+            Instructions instructions = new Instructions(
+                    requestSegment.asSlice(QueryProtocol.HEADER_SIZE + argumentsSize, n),
+                    requestSegment.asSlice(QueryProtocol.HEADER_SIZE, argumentsSize),
+                    n
+            );
+            int error = validate(instructions);
+            if (error != 0) {
+                sendError(channel, response, error);
+                return;
+            }
+            Main.runRange(instructions, 0, n, bitVector, responseSegment.asSlice(QueryProtocol.HEADER_SIZE, argumentsSize));
+            response.clear().putInt(0, n).limit(QueryProtocol.HEADER_SIZE + n * Long.BYTES);
+            QueryProtocol.writeFully(channel, response);
+        }
+    }
+
+    /**
+     * {@return the error code if the instructions are invalid, or 0 if they are valid}
+     * Instructions are invalid if they contain an unknown opcode or an access or rank query with an index out of bounds.
+     * Select queries with a rank out of bounds are valid, they return -1.
+     */
+    private int validate(Instructions instructions) {
+        for (long i = 0; i < instructions.size(); i++) {
+            byte opcode = instructions.opcode(i);
+            switch (opcode) {
+                case Instructions.ACCESS, Instructions.RANK_0, Instructions.RANK_1 -> {
+                    long index = instructions.argument(i);
+                    if (index < 0 || index >= bitVector.bitSize()) {
+                        return QueryProtocol.ERROR_ARGUMENT;
+                    }
+                }
+                case Instructions.SELECT_0, Instructions.SELECT_1 -> {
+                }
+                default -> {
+                    return QueryProtocol.ERROR_OPCODE;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static void sendError(SocketChannel channel, ByteBuffer response, int error) throws IOException {
+        response.clear().putInt(0, error).limit(QueryProtocol.HEADER_SIZE);
+        QueryProtocol.writeFully(channel, response);
+    }
+}
@@ -0,0 +1,121 @@
+package de.sirywell.bitvectors;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes results to a file without building a string of all results first.
+ * The results are formatted into a reusable buffer, which is written to the file whenever it is full.
+ */
+final class ResultWriter implements AutoCloseable {
+    private static final int BUFFER_SIZE = 1 << 20;
+    // "-9223372036854775808"
+    private static final int MAX_TEXT_LENGTH = 20;
+    private static final byte[] SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    // a ByteBuffer can't be larger than 2 GiB
+    private static final long DIRECT_WRITE_CHUNK_SIZE = 1 << 30;
+
+    enum Format {
+        /**
+         * One decimal number per line, without a trailing line separator.
+         */
+        TEXT,
+        /**
+         * 8 bytes per result, in little endian.
+         */
+        BINARY
+    }
+
+    private final FileChannel channel;
+    private final Format format;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] digits = new byte[MAX_TEXT_LENGTH];
+    private boolean first = true;
+
+    private ResultWriter(FileChannel channel, Format format) {
+        this.channel = channel;
+        this.format = format;
+    }
+
+    /**
+     * Opens a writer for the given file, replacing the file if it exists.
+     */
+    static ResultWriter open(Path path, Format format) throws IOException {
+        FileChannel channel = FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+        );
+        return new ResultWriter(channel, format);
+    }
+
+    /**
+     * Writes the first {@code count} longs of the given segment.
+     */
+    void write(MemorySegment results, long count) throws IOException {
+        if (format == Format.BINARY && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            // the results already are in the right format
+            flush();
+            long byteSize = count * Long.BYTES;
+            for (long offset = 0; offset < byteSize; offset += DIRECT_WRITE_CHUNK_SIZE) {
+                long size = Math.min(DIRECT_WRITE_CHUNK_SIZE, byteSize - offset);
+                ByteBuffer chunk = results.asSlice(offset, size).asByteBuffer();
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+            }
+            return;
+        }
+        for (long i = 0; i < count; i++) {
+            write(results.getAtIndex(ValueLayout.JAVA_LONG, i));
+        }
+    }
+
+    void write(long result) throws IOException {
+        if (buffer.remaining() < SEPARATOR.length + MAX_TEXT_LENGTH) {
+            flush();
+        }
+        if (format == Format.BINARY) {
+            buffer.putLong(result);
+            return;
+        }
+        if (!first) {
+            buffer.put(SEPARATOR);
+        }
+        first = false;
+        // work with non-positive numbers, so Long.MIN_VALUE doesn't need special handling
+        long remaining = result < 0 ? result : -result;
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' - remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (result < 0) {
+            digits[--start] = '-';
+        }
+        buffer.put(digits, start, digits.length - start);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            flush();
+        }
+    }
+}
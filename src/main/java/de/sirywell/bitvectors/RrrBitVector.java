@@ -0,0 +1,293 @@
+package de.sirywell.bitvectors;
+
+import java.io.PrintStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.List;
+
+/**
+ * This is an implementation of a compressed bit vector, using the RRR encoding.
+ * The bit vector is split into blocks of 63 bits. Each block is stored as its class, the number of {@code 1} bits
+ * in the block, and its offset, the index of the block among all blocks of the same class. The classes are stored
+ * with 6 bits each, the offsets with {@code ceil(log2(binomial(63, class)))} bits each. As blocks of low or high
+ * classes have small offsets, skewed bit vectors are compressed well.
+ * <p/>
+ * For every super block of 32 blocks, we store the count of {@code 1} bits from the beginning of the bit vector
+ * up to (exclusive) the super block, and the position of its first offset. A final super block entry contains
+ * the total count of {@code 1} bits. For {@code select}, we store the super block of every 4096th occurrence,
+ * for both 0 bits and 1 bits.
+ *
+ * @param classes     the classes of the blocks
+ * @param offsets     the offsets of the blocks
+ * @param superBlocks the count of {@code 1} bits and the offset position per super block, interleaved
+ * @param selectOnes  the super blocks of the sampled 1 bits
+ * @param selectZeros the super blocks of the sampled 0 bits
+ * @param bitSize     the number of bits the bit vector consists of
+ */
+record RrrBitVector(
+        MemorySegment classes,
+        MemorySegment offsets,
+        MemorySegment superBlocks,
+        MemorySegment selectOnes,
+        MemorySegment selectZeros,
+        long bitSize
+) implements BitVector {
+    private static final int BLOCK_SIZE = 63; // in bits
+    private static final int CLASS_WIDTH = 6;
+    private static final long BLOCKS_PER_SUPER_BLOCK = 32;
+    private static final long SUPER_BLOCK_SIZE = BLOCKS_PER_SUPER_BLOCK * BLOCK_SIZE; // in bits
+    private static final long SELECT_SAMPLE_RATE = 1 << 12;
+    /**
+     * {@code BINOMIALS[n * 64 + k]} is {@code binomial(n, k)}, for {@code 0 <= n, k < 64}.
+     */
+    private static final long[] BINOMIALS = new long[64 * 64];
+    /**
+     * The number of bits used to store the offset of a block of a specific class.
+     */
+    private static final int[] OFFSET_WIDTHS = new int[BLOCK_SIZE + 1];
+
+    static {
+        for (int n = 0; n < 64; n++) {
+            BINOMIALS[n * 64] = 1;
+            for (int k = 1; k <= n; k++) {
+                BINOMIALS[n * 64 + k] = BINOMIALS[(n - 1) * 64 + k - 1] + BINOMIALS[(n - 1) * 64 + k];
+            }
+        }
+        for (int k = 0; k <= BLOCK_SIZE; k++) {
+            OFFSET_WIDTHS[k] = Long.SIZE - Long.numberOfLeadingZeros(binomial(BLOCK_SIZE, k) - 1);
+        }
+    }
+
+    static RrrBitVector createRrrBitVector(Arena arena, MemorySegment segment, long bitSize) {
+        long nOfBlocks = Math.ceilDiv(bitSize, BLOCK_SIZE);
+        long nOfSuperBlocks = Math.ceilDiv(nOfBlocks, BLOCKS_PER_SUPER_BLOCK);
+        // one additional word, as bits are read and written word-wise
+        MemorySegment classes = arena.allocate(ValueLayout.JAVA_LONG, Math.ceilDiv(nOfBlocks * CLASS_WIDTH, Long.SIZE) + 1);
+        MemorySegment superBlocks = arena.allocate(ValueLayout.JAVA_LONG, 2 * (nOfSuperBlocks + 1));
+        // the first pass determines the classes, so we know how much space the offsets need
+        long ones = 0;
+        long offsetBits = 0;
+        for (long block = 0; block < nOfBlocks; block++) {
+            if (block % BLOCKS_PER_SUPER_BLOCK == 0) {
+                long superBlock = block / BLOCKS_PER_SUPER_BLOCK;
+                superBlocks.setAtIndex(ValueLayout.JAVA_LONG, 2 * superBlock, ones);
+                superBlocks.setAtIndex(ValueLayout.JAVA_LONG, 2 * superBlock + 1, offsetBits);
+            }
+            int blockClass = Long.bitCount(blockBits(segment, block, bitSize));
+            MemorySupport.setBits(classes, block * CLASS_WIDTH, CLASS_WIDTH, blockClass);
+            ones += blockClass;
+            offsetBits += OFFSET_WIDTHS[blockClass];
+        }
+        superBlocks.setAtIndex(ValueLayout.JAVA_LONG, 2 * nOfSuperBlocks, ones);
+        superBlocks.setAtIndex(ValueLayout.JAVA_LONG, 2 * nOfSuperBlocks + 1, offsetBits);
+
+        MemorySegment offsets = arena.allocate(ValueLayout.JAVA_LONG, Math.ceilDiv(offsetBits, Long.SIZE) + 1);
+        long offsetPosition = 0;
+        for (long block = 0; block < nOfBlocks; block++) {
+            long bits = blockBits(segment, block, bitSize);
+            int blockClass = Long.bitCount(bits);
+            MemorySupport.setBits(offsets, offsetPosition, OFFSET_WIDTHS[blockClass], encode(bits));
+            offsetPosition += OFFSET_WIDTHS[blockClass];
+        }
+
+        MemorySegment selectOnes = arena.allocate(ValueLayout.JAVA_LONG, Math.ceilDiv(ones, SELECT_SAMPLE_RATE));
+        MemorySegment selectZeros = arena.allocate(ValueLayout.JAVA_LONG, Math.ceilDiv(bitSize - ones, SELECT_SAMPLE_RATE));
+        // the (1-based) ranks of the next occurrences we want to sample
+        long nextOneRank = 1;
+        long nextZeroRank = 1;
+        for (long superBlock = 0; superBlock < nOfSuperBlocks; superBlock++) {
+            long onesAfter = superBlocks.getAtIndex(ValueLayout.JAVA_LONG, 2 * (superBlock + 1));
+            long zerosAfter = Math.min((superBlock + 1) * SUPER_BLOCK_SIZE, bitSize) - onesAfter;
+            for (; nextOneRank <= onesAfter; nextOneRank += SELECT_SAMPLE_RATE) {
+                selectOnes.setAtIndex(ValueLayout.JAVA_LONG, (nextOneRank - 1) / SELECT_SAMPLE_RATE, superBlock);
+            }
+            for (; nextZeroRank <= zerosAfter; nextZeroRank += SELECT_SAMPLE_RATE) {
+                selectZeros.setAtIndex(ValueLayout.JAVA_LONG, (nextZeroRank - 1) / SELECT_SAMPLE_RATE, superBlock);
+            }
+        }
+        return new RrrBitVector(classes, offsets, superBlocks, selectOnes, selectZeros, bitSize);
+    }
+
+    /**
+     * {@return the bits of the given block of the uncompressed bit vector, bits beyond bitSize are 0}
+     */
+    private static long blockBits(MemorySegment segment, long block, long bitSize) {
+        long start = block * BLOCK_SIZE;
+        long bits = MemorySupport.getBits(segment, start, BLOCK_SIZE);
+        if (bitSize - start < BLOCK_SIZE) {
+            bits &= (1L << (bitSize - start)) - 1;
+        }
+        return bits;
+    }
+
+    private static long binomial(int n, int k) {
+        return BINOMIALS[n * 64 + k];
+    }
+
+    /**
+     * {@return the offset of the block among all blocks of its class}
+     * The offset is the sum of {@code binomial(p_i, i)} for the positions {@code p_1 < p_2 < ...} of the set bits.
+     */
+    private static long encode(long bits) {
+        long offset = 0;
+        for (int i = 1; bits != 0; i++) {
+            int position = Long.numberOfTrailingZeros(bits);
+            offset += binomial(position, i);
+            bits &= bits - 1;
+        }
+        return offset;
+    }
+
+    /**
+     * {@return the bits of the block of the given class with the given offset}
+     */
+    private static long decode(long offset, int blockClass) {
+        long bits = 0;
+        for (int position = BLOCK_SIZE - 1; blockClass > 0; position--) {
+            long binomial = binomial(position, blockClass);
+            if (offset >= binomial) {
+                bits |= 1L << position;
+                offset -= binomial;
+                blockClass--;
+            }
+        }
+        return bits;
+    }
+
+    private int blockClass(long block) {
+        return (int) MemorySupport.getBits(classes, block * CLASS_WIDTH, CLASS_WIDTH);
+    }
+
+    private long superBlockOnes(long superBlock) {
+        return superBlocks.getAtIndex(ValueLayout.JAVA_LONG, 2 * superBlock);
+    }
+
+    private long superBlockOffsetPosition(long superBlock) {
+        return superBlocks.getAtIndex(ValueLayout.JAVA_LONG, 2 * superBlock + 1);
+    }
+
+    /**
+     * {@return the decompressed bits of the given block}
+     */
+    private long decodeBlock(long block) {
+        long superBlock = block / BLOCKS_PER_SUPER_BLOCK;
+        long offsetPosition = superBlockOffsetPosition(superBlock);
+        for (long b = superBlock * BLOCKS_PER_SUPER_BLOCK; b < block; b++) {
+            offsetPosition += OFFSET_WIDTHS[blockClass(b)];
+        }
+        return decodeBlock(blockClass(block), offsetPosition);
+    }
+
+    private long decodeBlock(int blockClass, long offsetPosition) {
+        if (blockClass == 0 || blockClass == BLOCK_SIZE) {
+            // there is only one block of this class
+            return blockClass == 0 ? 0 : (1L << BLOCK_SIZE) - 1;
+        }
+        return decode(MemorySupport.getBits(offsets, offsetPosition, OFFSET_WIDTHS[blockClass]), blockClass);
+    }
+
+    @Override
+    public long rank(long index, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        assert index >= 0 && index < bitSize : "index must be in bounds";
+        long block = index / BLOCK_SIZE;
+        long superBlock = block / BLOCKS_PER_SUPER_BLOCK;
+        long ones = superBlockOnes(superBlock);
+        long offsetPosition = superBlockOffsetPosition(superBlock);
+        for (long b = superBlock * BLOCKS_PER_SUPER_BLOCK; b < block; b++) {
+            int blockClass = blockClass(b);
+            ones += blockClass;
+            offsetPosition += OFFSET_WIDTHS[blockClass];
+        }
+        long bits = decodeBlock(blockClass(block), offsetPosition);
+        // rank is exclusive
+        ones += Long.bitCount(bits & ((1L << (index % BLOCK_SIZE)) - 1));
+        if (bit == 0) {
+            return index - ones;
+        }
+        return ones;
+    }
+
+    @Override
+    public long select(long rank, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        long nOfSuperBlocks = Math.ceilDiv(Math.ceilDiv(bitSize, BLOCK_SIZE), BLOCKS_PER_SUPER_BLOCK);
+        long ones = superBlockOnes(nOfSuperBlocks);
+        long occurrences = bit == 1 ? ones : bitSize - ones;
+        if (rank <= 0 || rank > occurrences) {
+            return -1;
+        }
+        MemorySegment samples = bit == 1 ? selectOnes : selectZeros;
+        long sampleIndex = (rank - 1) / SELECT_SAMPLE_RATE;
+        long lowerSuperBlock = samples.getAtIndex(ValueLayout.JAVA_LONG, sampleIndex);
+        long upperSuperBlock = sampleIndex + 1 < samples.byteSize() / Long.BYTES
+                ? samples.getAtIndex(ValueLayout.JAVA_LONG, sampleIndex + 1)
+                : nOfSuperBlocks - 1;
+        // find the last super block with less than rank occurrences before it
+        while (lowerSuperBlock < upperSuperBlock) {
+            long c = lowerSuperBlock + ((upperSuperBlock - lowerSuperBlock + 1) >> 1);
+            if (superBlockOccurrences(c, bit) < rank) {
+                lowerSuperBlock = c;
+            } else {
+                upperSuperBlock = c - 1;
+            }
+        }
+        long remaining = rank - superBlockOccurrences(lowerSuperBlock, bit);
+        long offsetPosition = superBlockOffsetPosition(lowerSuperBlock);
+        for (long block = lowerSuperBlock * BLOCKS_PER_SUPER_BLOCK; ; block++) {
+            int blockClass = blockClass(block);
+            int blockOccurrences = bit == 1 ? blockClass : BLOCK_SIZE - blockClass;
+            if (remaining <= blockOccurrences) {
+                long bits = decodeBlock(blockClass, offsetPosition);
+                if (bit == 0) {
+                    bits = ~bits;
+                }
+                return block * BLOCK_SIZE + BitSupport.selectInWord(bits, (int) remaining - 1);
+            }
+            remaining -= blockOccurrences;
+            offsetPosition += OFFSET_WIDTHS[blockClass];
+        }
+    }
+
+    /**
+     * {@return the number of occurrences of {@code bit} before the given super block}
+     */
+    private long superBlockOccurrences(long superBlock, int bit) {
+        long ones = superBlockOnes(superBlock);
+        if (bit == 1) {
+            return ones;
+        }
+        return superBlock * SUPER_BLOCK_SIZE - ones;
+    }
+
+    @Override
+    public int access(long index) {
+        long bits = decodeBlock(index / BLOCK_SIZE);
+        return (int) (bits >>> (index % BLOCK_SIZE)) & 1;
+    }
+
+    @Override
+    public long memoryUsage() {
+        return classes.byteSize() + offsets.byteSize() + superBlocks.byteSize()
+               + selectOnes.byteSize() + selectZeros.byteSize();
+    }
+
+    @Override
+    public BitVectorStats stats() {
+        return new BitVectorStats(bitSize, List.of(
+                new BitVectorStats.Component("classes", classes.byteSize()),
+                new BitVectorStats.Component("offsets", offsets.byteSize()),
+                new BitVectorStats.Component("superBlocks", superBlocks.byteSize()),
+                new BitVectorStats.Component("selectOnes", selectOnes.byteSize()),
+                new BitVectorStats.Component("selectZeros", selectZeros.byteSize())
+        ));
+    }
+
+    @Override
+    public void print(PrintStream output) {
+        for (long l = 0; l < bitSize; l++) {
+            output.print(access(l));
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package de.sirywell.bitvectors;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A bit vector composed of independently built {@link EfficientBitVector} shards of equal size (except for the last one).
+ * As no shard needs to be larger than {@link #shardBits()}, the bit vector is neither bound by the size limits
+ * of a single bit vector nor needs to be stored in one contiguous segment.
+ * <p/>
+ * A top-level index stores the number of 1s before each shard. {@code rank} and {@code access} pick the shard
+ * by dividing the index, {@code select} by a binary search over the top-level index.
+ * <p/>
+ * The shards can be written to and mapped from a directory with one {@link IndexFile} per shard. Shards are mapped,
+ * so shards that are rarely queried stay on disk until their pages are touched.
+ */
+final class ShardedBitVector implements BitVector {
+    /**
+     * The default number of bits per shard, {@code 2^32}, which makes each shard 512 MiB large.
+     */
+    static final long DEFAULT_SHARD_BITS = Long.getLong("ads.shard.bits", 1L << 32);
+    private static final String SHARD_FILE_FORMAT = "shard-%06d.idx";
+
+    private final EfficientBitVector[] shards;
+    private final long shardBits;
+    /**
+     * {@code onesBefore[i]} is the number of 1s in all shards before shard {@code i}, {@code onesBefore[shards.length]}
+     * is the number of 1s in the bit vector.
+     */
+    private final long[] onesBefore;
+    private final long bitSize;
+
+    private ShardedBitVector(EfficientBitVector[] shards, long shardBits) {
+        this.shards = shards;
+        this.shardBits = shardBits;
+        this.onesBefore = new long[shards.length + 1];
+        long bitSize = 0;
+        for (int shard = 0; shard < shards.length; shard++) {
+            long size = shards[shard].bitSize();
+            if (shard < shards.length - 1 ? size != shardBits : size > shardBits) {
+                throw new IllegalArgumentException("all shards but the last one must have " + shardBits + " bits");
+            }
+            onesBefore[shard + 1] = onesBefore[shard] + shards[shard].count(0, shards[shard].bitSize(), 1);
+            bitSize += shards[shard].bitSize();
+        }
+        this.bitSize = bitSize;
+    }
+
+    static ShardedBitVector createShardedBitVector(Arena arena, MemorySegment segment, long bitSize) {
+        return createShardedBitVector(arena, segment, bitSize, DEFAULT_SHARD_BITS, EfficientBitVector.BUILD_PARALLELISM);
+    }
+
+    /**
+     * Creates a bit vector from shards of {@code shardBits} bits each, building up to {@code parallelism} shards
+     * at the same time. The shards use slices of the {@code segment}, so the {@code arena} and the {@code segment}
+     * must be accessible from other threads if the parallelism is greater than 1.
+     *
+     * @param shardBits the number of bits per shard, a multiple of the super block size
+     */
+    static ShardedBitVector createShardedBitVector(Arena arena, MemorySegment segment, long bitSize, long shardBits, int parallelism) {
+        if (shardBits <= 0 || shardBits % EfficientBitVector.RANK_SUPER_BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("shard size must be a positive multiple of "
+                                               + EfficientBitVector.RANK_SUPER_BLOCK_SIZE + ": " + shardBits);
+        }
+        int nOfShards = Math.toIntExact(Math.max(1, Math.ceilDiv(bitSize, shardBits)));
+        EfficientBitVector[] shards = new EfficientBitVector[nOfShards];
+        try (ForkJoinPool pool = new ForkJoinPool(parallelism)) {
+            List<ForkJoinTask<?>> tasks = IntStream.range(0, nOfShards)
+                    .<ForkJoinTask<?>>mapToObj(shard -> ForkJoinTask.adapt(() -> {
+                        long from = shard * shardBits;
+                        long size = Math.min(shardBits, bitSize - from);
+                        long byteOffset = from / Byte.SIZE;
+                        long byteSize = Math.min(Math.ceilDiv(size, Long.SIZE) * Long.BYTES, segment.byteSize() - byteOffset);
+                        MemorySegment slice = segment.asSlice(byteOffset, byteSize);
+                        // the shards are built in parallel already
+                        shards[shard] = EfficientBitVector.createEfficientBitVector(arena, slice, size, 1);
+                    }))
+                    .toList();
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        }
+        return new ShardedBitVector(shards, shardBits);
+    }
+
+    /**
+     * Writes each shard as index file into the given directory, which is created if it doesn't exist.
+     * Existing shard files in the directory are replaced.
+     */
+    void write(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        for (int shard = 0; shard < shards.length; shard++) {
+            IndexFile.write(shards[shard], directory.resolve(SHARD_FILE_FORMAT.formatted(shard)));
+        }
+    }
+
+    /**
+     * Maps the shards written by {@link #write(Path)} into memory. The returned bit vector is valid
+     * as long as the arena is alive.
+     *
+     * @throws IOException if the shards can't be read, or if they don't form a valid bit vector
+     */
+    static ShardedBitVector map(Path directory, Arena arena) throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(path -> path.getFileName().toString().matches("shard-\\d{6}\\.idx")).sorted().toList();
+        }
+        if (files.isEmpty()) {
+            throw new IOException("no shards in " + directory);
+        }
+        List<EfficientBitVector> shards = new ArrayList<>();
+        for (int shard = 0; shard < files.size(); shard++) {
+            Path expected = directory.resolve(SHARD_FILE_FORMAT.formatted(shard));
+            if (!files.get(shard).equals(expected)) {
+                throw new IOException("missing shard " + expected);
+            }
+            shards.add(IndexFile.map(expected, arena));
+        }
+        long shardBits = shards.getFirst().bitSize();
+        if (shards.size() == 1) {
+            // the size of a single shard doesn't need to be a multiple of the super block size
+            long superBlocks = Math.max(1, Math.ceilDiv(shardBits, EfficientBitVector.RANK_SUPER_BLOCK_SIZE));
+            shardBits = superBlocks * EfficientBitVector.RANK_SUPER_BLOCK_SIZE;
+        } else if (shardBits % EfficientBitVector.RANK_SUPER_BLOCK_SIZE != 0) {
+            throw new IOException("shards in " + directory + " have an invalid size");
+        }
+        try {
+            return new ShardedBitVector(shards.toArray(EfficientBitVector[]::new), shardBits);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("shards in " + directory + " have different sizes", e);
+        }
+    }
+
+    /**
+     * {@return the number of bits per shard}
+     */
+    long shardBits() {
+        return shardBits;
+    }
+
+    /**
+     * {@return the number of shards}
+     */
+    int shardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public long rank(long index, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        assert index >= 0 && index < bitSize : "index must be in bounds";
+        int shard = (int) (index / shardBits);
+        long ones = onesBefore[shard] + shards[shard].rank(index - shard * shardBits, 1);
+        return bit == 1 ? ones : index - ones;
+    }
+
+    @Override
+    public long select(long rank, int bit) {
+        assert (bit | 1) == 1 : "bit must be 0 or 1";
+        if (rank <= 0 || rank > occurrencesBefore(shards.length, bit)) {
+            return -1;
+        }
+        // find the last shard with less than rank occurrences before it
+        int low = 0;
+        int high = shards.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (occurrencesBefore(mid, bit) < rank) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low * shardBits + shards[low].select(rank - occurrencesBefore(low, bit), bit);
+    }
+
+    /**
+     * {@return the number of occurrences of {@code bit} in all shards before the given shard}
+     */
+    private long occurrencesBefore(int shard, int bit) {
+        long ones = onesBefore[shard];
+        if (bit == 1) {
+            return ones;
+        }
+        return Math.min(shard * shardBits, bitSize) - ones;
+    }
+
+    @Override
+    public int access(long index) {
+        int shard = (int) (index / shardBits);
+        return shards[shard].access(index - shard * shardBits);
+    }
+
+    @Override
+    public void forEachSetBit(LongConsumer action) {
+        for (int shard = 0; shard < shards.length; shard++) {
+            long offset = shard * shardBits;
+            shards[shard].forEachSetBit(index -> action.accept(offset + index));
+        }
+    }
+
+    @Override
+    public long bitSize() {
+        return bitSize;
+    }
+
+    @Override
+    public long memoryUsage() {
+        long usage = (long) onesBefore.length * Long.BYTES;
+        for (EfficientBitVector shard : shards) {
+            usage += shard.memoryUsage();
+        }
+        return usage;
+    }
+
+    @Override
+    public BitVectorStats stats() {
+        long[] bytes = new long[3];
+        for (EfficientBitVector shard : shards) {
+            bytes[0] += shard.segment().byteSize();
+            bytes[1] += shard.rankLookup().byteSize();
+            bytes[2] += shard.selectLookup().byteSize();
+        }
+        return new BitVectorStats(bitSize, List.of(
+                new BitVectorStats.Component("segment", bytes[0]),
+                new BitVectorStats.Component("rankLookup", bytes[1]),
+                new BitVectorStats.Component("selectLookup", bytes[2]),
+                new BitVectorStats.Component("shardIndex", (long) onesBefore.length * Long.BYTES)
+        ));
+    }
+
+    @Override
+    public void print(PrintStream output) {
+        for (EfficientBitVector shard : shards) {
+            shard.print(output);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedBitVector[shards=" + shards.length + ", shardBits=" + shardBits + ", bitSize=" + bitSize
+               + ", ones=" + onesBefore[shards.length] + "]";
+    }
+}
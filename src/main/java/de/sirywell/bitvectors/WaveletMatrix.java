@@ -0,0 +1,295 @@
+package de.sirywell.bitvectors;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A wavelet matrix over a sequence of unsigned integer symbols, supporting {@code access}, {@code rank} and
+ * {@code select} for any symbol, as well as range quantiles and range frequencies.
+ * <p/>
+ * For symbols of {@code L} bits, the matrix consists of {@code L} levels, each an {@link EfficientBitVector}
+ * with one bit per symbol. Level {@code l} stores bit {@code L - 1 - l} of each symbol. Before building the next
+ * level, the symbols are stably partitioned by that bit, so all symbols with a 0 bit come first.
+ * The number of 0 bits of each level is stored to navigate between the levels.
+ * Each query on the matrix requires a constant number of {@code rank} or {@code select} queries per level.
+ */
+public final class WaveletMatrix {
+    private final EfficientBitVector[] levels;
+    private final long[] zeros;
+    private final long length;
+
+    private WaveletMatrix(EfficientBitVector[] levels, long[] zeros, long length) {
+        this.levels = levels;
+        this.zeros = zeros;
+        this.length = length;
+    }
+
+    /**
+     * Creates a wavelet matrix over the symbols in the segment. The elements are read with the given layout,
+     * and interpreted as unsigned numbers.
+     * The data of all levels is allocated in the given arena, which must be accessible from other threads.
+     *
+     * @param layout one of {@link ValueLayout#JAVA_BYTE}, {@link ValueLayout#JAVA_SHORT},
+     *               {@link ValueLayout#JAVA_INT} and {@link ValueLayout#JAVA_LONG}, in any byte order
+     */
+    public static WaveletMatrix createWaveletMatrix(Arena arena, MemorySegment symbols, ValueLayout layout) {
+        return createWaveletMatrix(arena, symbols, layout, EfficientBitVector.BUILD_PARALLELISM);
+    }
+
+    /**
+     * Creates a wavelet matrix like {@link #createWaveletMatrix(Arena, MemorySegment, ValueLayout)},
+     * building the lookup data of up to {@code parallelism} levels concurrently.
+     */
+    public static WaveletMatrix createWaveletMatrix(Arena arena, MemorySegment symbols, ValueLayout layout, int parallelism) {
+        long length = symbols.byteSize() / layout.byteSize();
+        try (Arena temporary = Arena.ofConfined()) {
+            MemorySegment current = temporary.allocate(ValueLayout.JAVA_LONG, length);
+            long max = 0;
+            for (long i = 0; i < length; i++) {
+                long symbol = switch (layout) {
+                    case ValueLayout.OfByte b -> Byte.toUnsignedLong(symbols.getAtIndex(b, i));
+                    case ValueLayout.OfShort s -> Short.toUnsignedLong(symbols.getAtIndex(s, i));
+                    case ValueLayout.OfInt n -> Integer.toUnsignedLong(symbols.getAtIndex(n, i));
+                    case ValueLayout.OfLong l -> symbols.getAtIndex(l, i);
+                    default -> throw new IllegalArgumentException("unsupported symbol layout " + layout);
+                };
+                current.setAtIndex(ValueLayout.JAVA_LONG, i, symbol);
+                max |= symbol;
+            }
+            int bitsPerSymbol = Math.max(Long.SIZE - Long.numberOfLeadingZeros(max), 1);
+            return build(arena, current, temporary.allocate(ValueLayout.JAVA_LONG, length), length, bitsPerSymbol, parallelism);
+        }
+    }
+
+    /**
+     * Builds the levels one after another. While the bits of a level are computed, the lookup data
+     * of the previous levels is built in the pool.
+     */
+    private static WaveletMatrix build(
+            Arena arena,
+            MemorySegment current,
+            MemorySegment next,
+            long length,
+            int bitsPerSymbol,
+            int parallelism
+    ) {
+        long levelBytes = Math.ceilDiv(length, Long.SIZE) * Long.BYTES;
+        // the bits of all levels are stored in a single segment
+        MemorySegment data = arena.allocate(levelBytes * bitsPerSymbol, Long.BYTES);
+        long[] zeros = new long[bitsPerSymbol];
+        List<ForkJoinTask<EfficientBitVector>> tasks = new ArrayList<>(bitsPerSymbol);
+        try (ForkJoinPool pool = new ForkJoinPool(parallelism)) {
+            for (int level = 0; level < bitsPerSymbol; level++) {
+                int shift = bitsPerSymbol - 1 - level;
+                MemorySegment levelData = data.asSlice(level * levelBytes, levelBytes);
+                long ones = 0;
+                long word = 0;
+                for (long i = 0; i < length; i++) {
+                    long bit = (current.getAtIndex(ValueLayout.JAVA_LONG, i) >>> shift) & 1;
+                    word |= bit << i;
+                    ones += bit;
+                    if (i % Long.SIZE == Long.SIZE - 1 || i == length - 1) {
+                        levelData.set(MemorySupport.WORD_LAYOUT, i / Long.SIZE * Long.BYTES, word);
+                        word = 0;
+                    }
+                }
+                zeros[level] = length - ones;
+                tasks.add(pool.submit(() -> EfficientBitVector.createEfficientBitVector(arena, levelData, length, 1)));
+                if (level == bitsPerSymbol - 1) {
+                    break; // the order after the last level is not needed
+                }
+                // stable partition by the current bit
+                long zeroIndex = 0;
+                long oneIndex = zeros[level];
+                for (long i = 0; i < length; i++) {
+                    long symbol = current.getAtIndex(ValueLayout.JAVA_LONG, i);
+                    if (((symbol >>> shift) & 1) == 0) {
+                        next.setAtIndex(ValueLayout.JAVA_LONG, zeroIndex++, symbol);
+                    } else {
+                        next.setAtIndex(ValueLayout.JAVA_LONG, oneIndex++, symbol);
+                    }
+                }
+                MemorySegment swap = current;
+                current = next;
+                next = swap;
+            }
+            EfficientBitVector[] levels = new EfficientBitVector[bitsPerSymbol];
+            for (int level = 0; level < bitsPerSymbol; level++) {
+                levels[level] = tasks.get(level).join();
+            }
+            return new WaveletMatrix(levels, zeros, length);
+        }
+    }
+
+    /**
+     * {@return the number of symbols}
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * {@return the number of bits per symbol, which is also the number of levels}
+     */
+    public int bitsPerSymbol() {
+        return levels.length;
+    }
+
+    /**
+     * {@return the symbol at the given index}
+     */
+    public long access(long index) {
+        assert index >= 0 && index < length : "index must be in bounds";
+        long symbol = 0;
+        for (int level = 0; level < levels.length; level++) {
+            int bit = levels[level].access(index);
+            symbol = (symbol << 1) | bit;
+            index = mapIndex(level, index, bit);
+        }
+        return symbol;
+    }
+
+    /**
+     * {@return the number of occurrences of the symbol in {@code [0, index)}}
+     */
+    public long rank(long symbol, long index) {
+        assert index >= 0 && index <= length : "index must be in bounds";
+        if (!isSymbol(symbol)) {
+            return 0;
+        }
+        long from = 0;
+        for (int level = 0; level < levels.length; level++) {
+            int bit = bit(symbol, level);
+            from = mapIndex(level, from, bit);
+            index = mapIndex(level, index, bit);
+        }
+        return index - from;
+    }
+
+    /**
+     * {@return the index of the {@code rank}th (1-based) occurrence of the symbol, or {@code -1} if there is none}
+     */
+    public long select(long symbol, long rank) {
+        if (rank <= 0 || !isSymbol(symbol)) {
+            return -1;
+        }
+        // find where the occurrences of the symbol are located after the last level
+        long from = 0;
+        long to = length;
+        for (int level = 0; level < levels.length; level++) {
+            int bit = bit(symbol, level);
+            from = mapIndex(level, from, bit);
+            to = mapIndex(level, to, bit);
+        }
+        if (rank > to - from) {
+            return -1;
+        }
+        // and go back up to the first level
+        long index = from + rank - 1;
+        for (int level = levels.length - 1; level >= 0; level--) {
+            if (bit(symbol, level) == 0) {
+                index = levels[level].select(index + 1, 0);
+            } else {
+                index = levels[level].select(index - zeros[level] + 1, 1);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * {@return the {@code k}th (0-based) smallest symbol in {@code [from, to)}}
+     */
+    public long quantile(long from, long to, long k) {
+        assert from >= 0 && from < to && to <= length : "range must be in bounds and not empty";
+        assert k >= 0 && k < to - from : "k must be less than the length of the range";
+        long symbol = 0;
+        for (int level = 0; level < levels.length; level++) {
+            long zerosInRange = rank(level, to, 0) - rank(level, from, 0);
+            int bit = k < zerosInRange ? 0 : 1;
+            if (bit == 1) {
+                k -= zerosInRange;
+            }
+            symbol = (symbol << 1) | bit;
+            from = mapIndex(level, from, bit);
+            to = mapIndex(level, to, bit);
+        }
+        return symbol;
+    }
+
+    /**
+     * {@return the number of symbols in {@code [from, to)} that are in {@code [lower, upper)}}
+     * The bounds are compared as unsigned numbers.
+     */
+    public long rangeFrequency(long from, long to, long lower, long upper) {
+        assert from >= 0 && from <= to && to <= length : "range must be in bounds";
+        if (Long.compareUnsigned(lower, upper) >= 0) {
+            return 0;
+        }
+        return countLess(from, to, upper) - countLess(from, to, lower);
+    }
+
+    /**
+     * {@return the number of symbols in {@code [from, to)} that are less than {@code bound}}
+     */
+    private long countLess(long from, long to, long bound) {
+        if (!isSymbol(bound)) {
+            return to - from;
+        }
+        long less = 0;
+        for (int level = 0; level < levels.length && from < to; level++) {
+            int bit = bit(bound, level);
+            if (bit == 1) {
+                // all symbols with a 0 bit here are smaller
+                less += rank(level, to, 0) - rank(level, from, 0);
+            }
+            from = mapIndex(level, from, bit);
+            to = mapIndex(level, to, bit);
+        }
+        return less;
+    }
+
+    /**
+     * {@return the number of used bytes}
+     */
+    public long memoryUsage() {
+        long usage = 0;
+        for (EfficientBitVector level : levels) {
+            usage += level.memoryUsage();
+        }
+        return usage;
+    }
+
+    private boolean isSymbol(long symbol) {
+        return levels.length == Long.SIZE || symbol >>> levels.length == 0;
+    }
+
+    private int bit(long symbol, int level) {
+        return (int) (symbol >>> (levels.length - 1 - level)) & 1;
+    }
+
+    /**
+     * {@return the index on the next level of the first symbol at or after {@code index} with the given bit}
+     */
+    private long mapIndex(int level, long index, int bit) {
+        if (bit == 0) {
+            return rank(level, index, 0);
+        }
+        return zeros[level] + rank(level, index, 1);
+    }
+
+    /**
+     * {@return the rank on the given level} In contrast to the levels themselves, {@code index} may be {@code length}.
+     */
+    private long rank(int level, long index, int bit) {
+        if (index == length) {
+            long ones = length - zeros[level];
+            return bit == 1 ? ones : zeros[level];
+        }
+        return levels[level].rank(index, bit);
+    }
+}
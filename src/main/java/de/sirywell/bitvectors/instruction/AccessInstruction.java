@@ -1,4 +0,0 @@
-package de.sirywell.bitvectors.instruction;
-
-public record AccessInstruction(long index) implements Instruction {
-}
@@ -1,5 +0,0 @@
-package de.sirywell.bitvectors.instruction;
-
-public sealed interface Instruction permits AccessInstruction, RankInstruction, SelectInstruction {
-
-}
@@ -0,0 +1,59 @@
+package de.sirywell.bitvectors.instruction;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * A columnar representation of a sequence of instructions, without an object per instruction.
+ * Each instruction consists of an opcode, stored as a byte, and its argument (an index or a rank), stored as a long.
+ * The lowest bit of rank and select opcodes is the bit they refer to.
+ *
+ * @param opcodes   the opcodes of the instructions
+ * @param arguments the arguments of the instructions
+ * @param size      the number of instructions
+ */
+public record Instructions(MemorySegment opcodes, MemorySegment arguments, long size) {
+    public static final byte ACCESS = 0;
+    public static final byte RANK_0 = 2;
+    public static final byte RANK_1 = 3;
+    public static final byte SELECT_0 = 4;
+    public static final byte SELECT_1 = 5;
+
+    /**
+     * {@return uninitialized instructions with space for {@code size} instructions}
+     */
+    public static Instructions allocate(Arena arena, long size) {
+        MemorySegment opcodes = arena.allocate(ValueLayout.JAVA_BYTE, size);
+        MemorySegment arguments = arena.allocate(ValueLayout.JAVA_LONG, size);
+        return new Instructions(opcodes, arguments, size);
+    }
+
+    public static byte rank(int bit) {
+        return (byte) (RANK_0 | bit);
+    }
+
+    public static byte select(int bit) {
+        return (byte) (SELECT_0 | bit);
+    }
+
+    /**
+     * {@return the bit a rank or select opcode refers to}
+     */
+    public static int bit(byte opcode) {
+        return opcode & 1;
+    }
+
+    public byte opcode(long index) {
+        return opcodes.getAtIndex(ValueLayout.JAVA_BYTE, index);
+    }
+
+    public long argument(long index) {
+        return arguments.getAtIndex(ValueLayout.JAVA_LONG, index);
+    }
+
+    public void set(long index, byte opcode, long argument) {
+        opcodes.setAtIndex(ValueLayout.JAVA_BYTE, index, opcode);
+        arguments.setAtIndex(ValueLayout.JAVA_LONG, index, argument);
+    }
+}
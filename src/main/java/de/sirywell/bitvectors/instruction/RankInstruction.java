@@ -1,4 +0,0 @@
-package de.sirywell.bitvectors.instruction;
-
-public record RankInstruction(long index, int bit) implements Instruction {
-}
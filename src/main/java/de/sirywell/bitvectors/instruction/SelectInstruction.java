@@ -1,4 +0,0 @@
-package de.sirywell.bitvectors.instruction;
-
-public record SelectInstruction(long rank, int bit) implements Instruction {
-}
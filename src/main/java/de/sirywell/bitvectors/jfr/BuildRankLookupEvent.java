@@ -0,0 +1,18 @@
+package de.sirywell.bitvectors.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("de.sirywell.bitvectors.BuildRankLookup")
+@Label("Build Rank Lookup")
+@Category({"BitVector", "Phases"})
+@Description("Counting the bits of all blocks and super blocks")
+public final class BuildRankLookupEvent extends Event {
+    @Label("Super Blocks")
+    public long superBlocks;
+    @Label("Parallelism")
+    public int parallelism;
+}
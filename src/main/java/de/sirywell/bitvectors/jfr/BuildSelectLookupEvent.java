@@ -0,0 +1,18 @@
+package de.sirywell.bitvectors.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("de.sirywell.bitvectors.BuildSelectLookup")
+@Label("Build Select Lookup")
+@Category({"BitVector", "Phases"})
+@Description("Sampling the positions of every n-th occurrence")
+public final class BuildSelectLookupEvent extends Event {
+    @Label("Super Blocks")
+    public long superBlocks;
+    @Label("Parallelism")
+    public int parallelism;
+}
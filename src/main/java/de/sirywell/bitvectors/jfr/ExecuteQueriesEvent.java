@@ -0,0 +1,18 @@
+package de.sirywell.bitvectors.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("de.sirywell.bitvectors.ExecuteQueries")
+@Label("Execute Queries")
+@Category({"BitVector", "Phases"})
+@Description("Executing all instructions on the bit vector")
+public final class ExecuteQueriesEvent extends Event {
+    @Label("Instructions")
+    public long instructions;
+    @Label("Threads")
+    public int threads;
+}
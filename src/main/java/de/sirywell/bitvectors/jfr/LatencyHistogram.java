@@ -0,0 +1,139 @@
+package de.sirywell.bitvectors.jfr;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds with log-linear buckets, similar to an HDR histogram with 3 significant
+ * bits: values below 8 have a bucket each, every larger power of two range is split into 8 equally sized buckets.
+ * So the relative error of a bucket is at most 12.5%, while 488 buckets cover all non-negative longs.
+ * <p/>
+ * Recording is thread-safe and wait-free, it just increments a counter.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final String operation;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param operation the name of the operation whose latencies are recorded
+     */
+    public LatencyHistogram(String operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * Records {@code count} queries with the given latency each.
+     */
+    public void record(long nanos, long count) {
+        counts.getAndAdd(bucket(Math.max(0, nanos)), count);
+    }
+
+    /**
+     * {@return the bucket of the value}
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * {@return the smallest value of the bucket}
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * {@return the smallest value of the next bucket, or {@link Long#MAX_VALUE} for the last bucket}
+     */
+    static long upperBound(int bucket) {
+        return bucket + 1 < BUCKETS ? lowerBound(bucket + 1) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Emits a {@link QueryLatencyEvent} per non-empty bucket and a {@link QueryLatencySummaryEvent},
+     * if any queries were recorded.
+     */
+    public void commit() {
+        long[] snapshot = snapshot();
+        long samples = sum(snapshot);
+        if (samples == 0) {
+            return;
+        }
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (snapshot[bucket] == 0) {
+                continue;
+            }
+            QueryLatencyEvent event = new QueryLatencyEvent();
+            event.operation = operation;
+            event.lowerBound = lowerBound(bucket);
+            event.upperBound = upperBound(bucket);
+            event.count = snapshot[bucket];
+            event.commit();
+        }
+        QueryLatencySummaryEvent summary = new QueryLatencySummaryEvent();
+        summary.operation = operation;
+        summary.samples = samples;
+        summary.p50 = percentile(snapshot, samples, 0.5);
+        summary.p90 = percentile(snapshot, samples, 0.9);
+        summary.p99 = percentile(snapshot, samples, 0.99);
+        summary.p999 = percentile(snapshot, samples, 0.999);
+        summary.max = percentile(snapshot, samples, 1);
+        summary.commit();
+    }
+
+    /**
+     * {@return the number of recorded queries}
+     */
+    public long samples() {
+        return sum(snapshot());
+    }
+
+    /**
+     * {@return the upper bound of the bucket containing the given fraction of the recorded queries, or 0 if none were recorded}
+     */
+    public long percentile(double fraction) {
+        long[] snapshot = snapshot();
+        long samples = sum(snapshot);
+        return samples == 0 ? 0 : percentile(snapshot, samples, fraction);
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            snapshot[bucket] = counts.get(bucket);
+        }
+        return snapshot;
+    }
+
+    private static long sum(long[] snapshot) {
+        long sum = 0;
+        for (long count : snapshot) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    private static long percentile(long[] snapshot, long samples, double fraction) {
+        long threshold = Math.max(1, (long) Math.ceil(samples * fraction));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += snapshot[bucket];
+            if (seen >= threshold) {
+                return upperBound(bucket);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,18 @@
+package de.sirywell.bitvectors.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("de.sirywell.bitvectors.MapFile")
+@Label("Map File")
+@Category({"BitVector", "Phases"})
+@Description("Mapping the input file into memory")
+public final class MapFileEvent extends Event {
+    @Label("Size")
+    @DataAmount
+    public long size;
+}
@@ -0,0 +1,16 @@
+package de.sirywell.bitvectors.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("de.sirywell.bitvectors.ParseBits")
+@Label("Parse Bits")
+@Category({"BitVector", "Phases"})
+@Description("Parsing the bit vector from the input file")
+public final class ParseBitsEvent extends Event {
+    @Label("Bits")
+    public long bits;
+}
@@ -0,0 +1,16 @@
+package de.sirywell.bitvectors.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("de.sirywell.bitvectors.ParseInstructions")
+@Label("Parse Instructions")
+@Category({"BitVector", "Phases"})
+@Description("Parsing the instructions from the input file")
+public final class ParseInstructionsEvent extends Event {
+    @Label("Instructions")
+    public long instructions;
+}
@@ -0,0 +1,31 @@
+package de.sirywell.bitvectors.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A single non-empty bucket of a {@link LatencyHistogram}.
+ */
+@Name("de.sirywell.bitvectors.QueryLatency")
+@Label("Query Latency")
+@Category({"BitVector", "Queries"})
+@Description("The number of sampled queries of an operation whose latency is within the bounds")
+@StackTrace(false)
+public final class QueryLatencyEvent extends Event {
+    @Label("Operation")
+    public String operation;
+    @Label("Lower Bound")
+    @Timespan
+    public long lowerBound;
+    @Label("Upper Bound")
+    @Description("Exclusive")
+    @Timespan
+    public long upperBound;
+    @Label("Count")
+    public long count;
+}
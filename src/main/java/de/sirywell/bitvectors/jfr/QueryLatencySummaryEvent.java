@@ -0,0 +1,39 @@
+package de.sirywell.bitvectors.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The percentiles of a {@link LatencyHistogram}. Each percentile is the upper bound of its bucket.
+ */
+@Name("de.sirywell.bitvectors.QueryLatencySummary")
+@Label("Query Latency Summary")
+@Category({"BitVector", "Queries"})
+@Description("The percentiles of the latencies of the sampled queries of an operation")
+@StackTrace(false)
+public final class QueryLatencySummaryEvent extends Event {
+    @Label("Operation")
+    public String operation;
+    @Label("Samples")
+    public long samples;
+    @Label("50th Percentile")
+    @Timespan
+    public long p50;
+    @Label("90th Percentile")
+    @Timespan
+    public long p90;
+    @Label("99th Percentile")
+    @Timespan
+    public long p99;
+    @Label("99.9th Percentile")
+    @Timespan
+    public long p999;
+    @Label("Maximum")
+    @Timespan
+    public long max;
+}
@@ -0,0 +1,16 @@
+package de.sirywell.bitvectors.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("de.sirywell.bitvectors.WriteOutput")
+@Label("Write Output")
+@Category({"BitVector", "Phases"})
+@Description("Writing the results to the output file")
+public final class WriteOutputEvent extends Event {
+    @Label("Results")
+    public long results;
+}
@@ -0,0 +1,46 @@
+package de.sirywell.bitvectors.management;
+
+import java.util.Map;
+
+/**
+ * The management interface of a bit vector, exposing its memory usage and the number of queries it served.
+ */
+public interface BitVectorMXBean {
+
+    /**
+     * {@return the simple name of the bit vector implementation}
+     */
+    String getImplementation();
+
+    long getBitSize();
+
+    /**
+     * {@return the number of bytes used by the bit vector}
+     */
+    long getMemoryUsage();
+
+    /**
+     * {@return the number of bytes per component of the bit vector}
+     */
+    Map<String, Long> getComponentBytes();
+
+    /**
+     * {@return the number of bits used in addition to the bits of the bit vector, per bit}
+     */
+    double getOverheadBitsPerBit();
+
+    long getRank0Queries();
+
+    long getRank1Queries();
+
+    long getSelect0Queries();
+
+    long getSelect1Queries();
+
+    long getAccessQueries();
+
+    /**
+     * Sets all query counters to 0.
+     */
+    void resetQueryCounters();
+}
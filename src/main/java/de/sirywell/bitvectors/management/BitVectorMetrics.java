@@ -0,0 +1,99 @@
+package de.sirywell.bitvectors.management;
+
+import de.sirywell.bitvectors.BitVectorStats;
+import de.sirywell.bitvectors.MeteredBitVector;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exposes a {@link MeteredBitVector} as {@link BitVectorMXBean}. The memory usage is computed once,
+ * as bit vectors are immutable, while the query counters are read on each access.
+ */
+public final class BitVectorMetrics implements BitVectorMXBean {
+    private static final String DOMAIN = "de.sirywell.bitvectors";
+
+    private final MeteredBitVector bitVector;
+    private final BitVectorStats stats;
+
+    public BitVectorMetrics(MeteredBitVector bitVector) {
+        this.bitVector = bitVector;
+        this.stats = bitVector.stats();
+    }
+
+    /**
+     * Registers the metrics of the bit vector at the platform MBean server,
+     * as {@code de.sirywell.bitvectors:type=BitVector,name=<name>}.
+     *
+     * @return the name the metrics are registered with
+     */
+    public static ObjectName register(String name, MeteredBitVector bitVector) throws JMException {
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=BitVector,name=" + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new BitVectorMetrics(bitVector), objectName);
+        return objectName;
+    }
+
+    @Override
+    public String getImplementation() {
+        return bitVector.delegate().getClass().getSimpleName();
+    }
+
+    @Override
+    public long getBitSize() {
+        return stats.bitSize();
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return stats.totalBytes();
+    }
+
+    @Override
+    public Map<String, Long> getComponentBytes() {
+        Map<String, Long> components = new LinkedHashMap<>();
+        for (BitVectorStats.Component component : stats.components()) {
+            components.put(component.name(), component.bytes());
+        }
+        return components;
+    }
+
+    @Override
+    public double getOverheadBitsPerBit() {
+        return stats.overheadBitsPerBit();
+    }
+
+    @Override
+    public long getRank0Queries() {
+        return bitVector.rankCount(0);
+    }
+
+    @Override
+    public long getRank1Queries() {
+        return bitVector.rankCount(1);
+    }
+
+    @Override
+    public long getSelect0Queries() {
+        return bitVector.selectCount(0);
+    }
+
+    @Override
+    public long getSelect1Queries() {
+        return bitVector.selectCount(1);
+    }
+
+    @Override
+    public long getAccessQueries() {
+        return bitVector.accessCount();
+    }
+
+    @Override
+    public void resetQueryCounters() {
+        bitVector.resetCounters();
+    }
+}
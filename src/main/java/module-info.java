@@ -1,3 +1,14 @@
+/**
+ * Bit vectors with rank and select support. A {@link de.sirywell.bitvectors.BitVector} is created with the
+ * {@link de.sirywell.bitvectors.BitVectorBuilder}, and combined with {@link de.sirywell.bitvectors.BitVectorOperations}.
+ * {@link de.sirywell.bitvectors.WaveletMatrix} extends rank and select to larger alphabets.
+ */
 module bitvectors {
+    requires java.management;
     requires jdk.incubator.vector;
-}
\ No newline at end of file
+    requires jdk.jfr;
+
+    exports de.sirywell.bitvectors;
+    exports de.sirywell.bitvectors.jfr to jdk.jfr;
+    exports de.sirywell.bitvectors.management;
+}
@@ -1,32 +1,49 @@
 package de.sirywell.bitvectors;
 
+import de.sirywell.bitvectors.instruction.Instructions;
+import jdk.incubator.vector.ByteVector;
 import jdk.jfr.Category;
 import jdk.jfr.Event;
 import jdk.jfr.Name;
 import jdk.jfr.Threshold;
-import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Named;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Random;
 import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
 import static org.junit.jupiter.api.Assertions.*;
 
-@Disabled
 class BitVectorTest {
 
     static Stream<Arguments> bitVectorConstructors() {
         return Stream.of(
-                Arguments.of(Named.of("naive", (Function<MemorySegment, BitVector>) (segment -> new NaiveBitVector(segment, segment.byteSize() * 8))))
+                Arguments.of(Named.of("naive", (Function<MemorySegment, BitVector>) (segment -> new NaiveBitVector(segment, segment.byteSize() * 8)))),
+                Arguments.of(Named.of("interleaved", (Function<MemorySegment, BitVector>) (segment -> InterleavedBitVector.createInterleavedBitVector(Arena.ofAuto(), segment, segment.byteSize() * 8))))
         );
     }
 
@@ -38,9 +55,9 @@ class BitVectorTest {
         assertAll(
                 () -> assertEquals(0, bitVector.rank(60, 1)),
                 () -> assertEquals(60, bitVector.rank(60, 0)),
-                () -> assertEquals(1, bitVector.rank(64, 1)),
-                () -> assertEquals(2, bitVector.rank(65, 1)),
-                () -> assertEquals(64, bitVector.rank(127, 1))
+                () -> assertEquals(0, bitVector.rank(64, 1)),
+                () -> assertEquals(1, bitVector.rank(65, 1)),
+                () -> assertEquals(63, bitVector.rank(127, 1))
         );
     }
 
@@ -58,6 +75,101 @@ class BitVectorTest {
         );
     }
 
+    @Test
+    void testParseBits() {
+        Random random = new Random(0);
+        for (int length = 1; length <= Long.SIZE; length++) {
+            for (int q = 0; q < 100; q++) {
+                int start = random.nextInt(100);
+                // some segments end right after the parsed characters, others continue
+                byte[] chars = new byte[start + length + random.nextInt(2) * 70];
+                // characters around the parsed ones must not be parsed
+                Arrays.fill(chars, (byte) '1');
+                long expected = 0;
+                for (int i = 0; i < length; i++) {
+                    int bit = random.nextInt(2);
+                    chars[start + i] = (byte) ('0' + bit);
+                    expected |= (long) bit << i;
+                }
+                long actual = MemorySupport.parseBits(MemorySegment.ofArray(chars), start, start + length);
+                assertEquals(expected, actual, "length " + length + " at " + start);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface BitVectorFactory {
+        BitVector create(Arena arena, MemorySegment segment, long bitSize);
+    }
+
+    /**
+     * The ways the bits of the rank/select tests are distributed.
+     */
+    enum Pattern {
+        DENSE, SPARSE, VERY_SPARSE, RUNS;
+
+        long[] words(Random random, int length) {
+            long[] words = new long[length];
+            switch (this) {
+                case DENSE -> Arrays.setAll(words, i -> random.nextLong());
+                case SPARSE -> Arrays.setAll(words, i -> random.nextLong() & random.nextLong() & random.nextLong() & random.nextLong());
+                case VERY_SPARSE -> {
+                    for (int i = 0; i < 50; i++) {
+                        words[random.nextInt(length)] |= 1L << random.nextInt(Long.SIZE);
+                    }
+                }
+                case RUNS -> {
+                    // long runs of equal bits, so whole blocks and super blocks have a single kind of bit
+                    for (int i = 0; i < length; ) {
+                        int kind = random.nextInt(3);
+                        int run = 1 + random.nextInt(1100);
+                        for (int end = Math.min(length, i + run); i < end; i++) {
+                            words[i] = kind == 0 ? 0 : kind == 1 ? -1 : random.nextLong();
+                        }
+                    }
+                }
+            }
+            return words;
+        }
+    }
+
+    static Stream<Named<BitVectorFactory>> rankSelectBitVectors() {
+        return Stream.of(
+                Named.of("efficient", EfficientBitVector::createEfficientBitVector),
+                Named.of("efficient parallel", (arena, segment, bitSize) -> EfficientBitVector.createEfficientBitVector(arena, segment, bitSize, 4)),
+                Named.of("interleaved", InterleavedBitVector::createInterleavedBitVector),
+                Named.of("rrr", RrrBitVector::createRrrBitVector),
+                Named.of("elias-fano", EliasFanoBitVector::createEliasFanoBitVector),
+                Named.of("dynamic", (arena, segment, bitSize) -> DynamicBitVector.createDynamicBitVector(segment, bitSize)),
+                Named.of("builder", (arena, segment, bitSize) -> {
+                    long[] words = segment.toArray(JAVA_LONG);
+                    return new BitVectorBuilder(arena)
+                            .append(words, 0, words.length - 1)
+                            .append(words[words.length - 1], (int) (bitSize - (words.length - 1) * 64L))
+                            .build();
+                }),
+                Named.of("sharded", (arena, segment, bitSize) -> ShardedBitVector.createShardedBitVector(
+                        arena, segment, bitSize, 2 * EfficientBitVector.RANK_SUPER_BLOCK_SIZE, 4
+                )),
+                Named.of("metered", (arena, segment, bitSize) -> new MeteredBitVector(EfficientBitVector.createEfficientBitVector(arena, segment, bitSize)))
+        );
+    }
+
+    static Stream<Arguments> rankSelectCases() {
+        return rankSelectBitVectors().flatMap(factory -> Arrays.stream(Pattern.values()).map(pattern -> Arguments.of(factory, pattern)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("rankSelectCases")
+    void testRankSelect(BitVectorFactory factory, Pattern pattern) {
+        // multiple super blocks and shards, with a last word that is not used completely
+        long[] words = pattern.words(new Random(0), 5000);
+        long bitSize = words.length * 64L - 13;
+        words[words.length - 1] &= -1L >>> 13;
+        BitVector vector = factory.create(Arena.ofAuto(), MemorySegment.ofArray(words), bitSize);
+        checkRankSelect(vector, words, bitSize);
+    }
+
     @Test
     void testEfficientAccessLarge() {
         MemorySegment source = MemorySegment.ofArray(new Random(0).longs(13371337).toArray());
@@ -130,6 +242,513 @@ class BitVectorTest {
         }
     }
 
+    @Test
+    void testEfficientBatch() {
+        Random random = new Random(0);
+        MemorySegment source = MemorySegment.ofArray(random.longs(133713).toArray());
+        long bitSize = source.byteSize() * 8;
+        EfficientBitVector vector = EfficientBitVector.createEfficientBitVector(Arena.ofAuto(), source, bitSize);
+        long[] indices = random.longs(13371, 0, bitSize).toArray();
+        long[] ranks = random.longs(13371, 1, bitSize / 2).toArray();
+        long[] out = new long[indices.length];
+        vector.accessBatch(indices, out);
+        for (int i = 0; i < indices.length; i++) {
+            assertEquals(vector.access(indices[i]), out[i]);
+        }
+        for (int bit = 0; bit <= 1; bit++) {
+            vector.rankBatch(indices, bit, out);
+            for (int i = 0; i < indices.length; i++) {
+                assertEquals(vector.rank(indices[i], bit), out[i]);
+            }
+            vector.selectBatch(ranks, bit, out);
+            for (int i = 0; i < ranks.length; i++) {
+                assertEquals(vector.select(ranks[i], bit), out[i]);
+            }
+        }
+        // only the first elements of reused arrays belong to the batch
+        int length = indices.length / 2;
+        Arrays.fill(out, -2);
+        vector.rankBatch(indices, length, 1, out);
+        for (int i = 0; i < indices.length; i++) {
+            assertEquals(i < length ? vector.rank(indices[i], 1) : -2, out[i]);
+        }
+    }
+
+    @Test
+    void testEfficientParallelBuild() {
+        Random random = new Random(0);
+        long[] array = LongStream.generate(() -> random.nextLong() & random.nextLong())
+                .limit(1337133)
+                .toArray();
+        MemorySegment source = MemorySegment.ofArray(array);
+        long bitSize = source.byteSize() * 8 - 7;
+        EfficientBitVector sequential = EfficientBitVector.createEfficientBitVector(Arena.ofAuto(), source, bitSize, 1);
+        EfficientBitVector parallel = EfficientBitVector.createEfficientBitVector(Arena.ofAuto(), source, bitSize, 4);
+        assertEquals(-1, sequential.rankLookup().mismatch(parallel.rankLookup()));
+        assertEquals(-1, sequential.selectLookup().mismatch(parallel.selectLookup()));
+    }
+
+    @Test
+    void testIndexFileRoundTrip(@TempDir Path directory) throws IOException {
+        MemorySegment source = MemorySegment.ofArray(new Random(0).longs(133713).toArray());
+        long bitSize = source.byteSize() * 8 - 3;
+        EfficientBitVector vector = EfficientBitVector.createEfficientBitVector(Arena.ofAuto(), source, bitSize);
+        Path file = directory.resolve("vector.idx");
+        IndexFile.write(vector, file);
+        try (Arena arena = Arena.ofConfined()) {
+            EfficientBitVector mapped = IndexFile.map(file, arena, true);
+            assertEquals(bitSize, mapped.bitSize());
+            assertEquals(-1, vector.segment().mismatch(mapped.segment()));
+            assertEquals(-1, vector.rankLookup().mismatch(mapped.rankLookup()));
+            assertEquals(-1, vector.selectLookup().mismatch(mapped.selectLookup()));
+            assertEquals(vector.rank(bitSize - 1, 1), mapped.rank(bitSize - 1, 1));
+            assertEquals(vector.select(1337, 0), mapped.select(1337, 0));
+        }
+        // the header stores the bit size at byte 16, in little endian
+        byte[] content = Files.readAllBytes(file);
+        ByteBuffer header = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        // a bit size that doesn't match the sizes of the sections
+        header.putLong(16, bitSize + EfficientBitVector.RANK_SUPER_BLOCK_SIZE);
+        Files.write(file, content);
+        assertThrows(IOException.class, () -> IndexFile.map(file, Arena.ofAuto(), false));
+        // a bit size that matches the sizes of the sections, but not the checksum
+        header.putLong(16, bitSize - 1);
+        Files.write(file, content);
+        assertThrows(IOException.class, () -> IndexFile.map(file, Arena.ofAuto(), true));
+    }
+
+    @Test
+    void testEliasFanoMemoryUsage() {
+        Random random = new Random(0);
+        long bitSize = 10_000_000 - 13;
+        long[] array = new long[(int) Math.ceilDiv(bitSize, 64)];
+        for (int i = 0; i < 5000; i++) {
+            long position = random.nextLong(bitSize);
+            array[(int) (position / 64)] |= 1L << position;
+        }
+        EliasFanoBitVector vector = EliasFanoBitVector.createEliasFanoBitVector(Arena.ofAuto(), MemorySegment.ofArray(array), bitSize);
+        // the correctness is covered by testRankSelect, this checks the space of a large sparse bit vector
+        long ones = 0;
+        for (int i = 0; i < array.length; i++) {
+            for (long word = array[i]; word != 0; word &= word - 1) {
+                ones++;
+                long index = i * 64L + Long.numberOfTrailingZeros(word);
+                assertEquals(index, vector.select(ones, 1), "select 1 " + ones);
+                assertEquals(ones - 1, vector.rank(index, 1), "rank 1 " + index);
+            }
+        }
+        assertEquals(-1, vector.select(ones + 1, 1));
+        assertTrue(vector.memoryUsage() < bitSize / 8 / 50, "memory usage " + vector.memoryUsage());
+    }
+
+    @Test
+    void testDynamicUpdates() {
+        Random random = new Random(0);
+        long[] array = LongStream.generate(random::nextLong).limit(1000).toArray();
+        DynamicBitVector vector = DynamicBitVector.createDynamicBitVector(MemorySegment.ofArray(array), 64000);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 64000; i++) {
+            expected.add((int) (array[i / 64] >>> i) & 1);
+        }
+        for (int i = 0; i < 100_000; i++) {
+            int operation = random.nextInt(3);
+            int bit = random.nextInt(2);
+            if (operation == 0 || expected.isEmpty()) {
+                int index = random.nextInt(expected.size() + 1);
+                vector.insert(index, bit);
+                expected.add(index, bit);
+            } else if (operation == 1) {
+                int index = random.nextInt(expected.size());
+                assertEquals((int) expected.remove(index), vector.delete(index));
+            } else {
+                int index = random.nextInt(expected.size());
+                vector.set(index, bit);
+                expected.set(index, bit);
+            }
+        }
+        long[] words = new long[Math.ceilDiv(expected.size(), Long.SIZE)];
+        for (int i = 0; i < expected.size(); i++) {
+            words[i / 64] |= (long) expected.get(i) << i;
+        }
+        checkRankSelect(vector, words, expected.size());
+        checkRankSelect(vector.freeze(Arena.ofAuto()), words, expected.size());
+    }
+
+    @Test
+    void testBuilderMatchesFactory() {
+        Random random = new Random(0);
+        long[] array = LongStream.generate(() -> random.nextLong() & random.nextLong())
+                .limit(133713)
+                .toArray();
+        long bitSize = array.length * 64L - 13;
+        array[array.length - 1] &= -1L >>> 13;
+        BitVectorBuilder builder = new BitVectorBuilder(Arena.ofAuto());
+        // mix the different kinds of input, so the appended data is not word aligned
+        builder.append(array, 0, 1000);
+        for (int i = 0; i < 64 * 10; i++) {
+            builder.append((int) (array[1000 + i / 64] >>> i) & 1);
+        }
+        builder.append(array[1010], 37);
+        builder.append(array[1010] >>> 37, 27);
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 100_000).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asLongBuffer().put(array, 1011, 100_000);
+        builder.append(buffer);
+        int from = 101_011;
+        builder.append(BitSet.valueOf(Arrays.copyOfRange(array, from, array.length)), bitSize - from * 64L);
+        BitVector built = builder.build();
+        EfficientBitVector expected = EfficientBitVector.createEfficientBitVector(Arena.ofAuto(), MemorySegment.ofArray(array), bitSize);
+        assertEquals(expected.memoryUsage(), built.memoryUsage());
+        checkRankSelect(built, array, bitSize);
+    }
+
+    @Test
+    void testWaveletMatrix() {
+        Random random = new Random(0);
+        int[] symbols = random.ints(100_000, 0, 200).toArray();
+        // make some symbols much more frequent
+        for (int i = 0; i < symbols.length; i += 3) {
+            symbols[i] = 7;
+        }
+        try (Arena arena = Arena.ofShared()) {
+            WaveletMatrix matrix = WaveletMatrix.createWaveletMatrix(arena, MemorySegment.ofArray(symbols), JAVA_INT);
+            assertEquals(8, matrix.bitsPerSymbol());
+            long[] counts = new long[256];
+            for (int i = 0; i < symbols.length; i++) {
+                assertEquals(symbols[i], matrix.access(i), "access " + i);
+                assertEquals(counts[symbols[i]], matrix.rank(symbols[i], i), "rank " + i);
+                counts[symbols[i]]++;
+                assertEquals(i, matrix.select(symbols[i], counts[symbols[i]]), "select " + i);
+            }
+            assertEquals(counts[7], matrix.rank(7, symbols.length));
+            assertEquals(-1, matrix.select(7, counts[7] + 1));
+            assertEquals(-1, matrix.select(255, 1));
+            assertEquals(0, matrix.rank(1000, symbols.length));
+            for (int q = 0; q < 1000; q++) {
+                int from = random.nextInt(symbols.length);
+                int to = from + 1 + random.nextInt(Math.min(5000, symbols.length - from));
+                int[] sorted = Arrays.copyOfRange(symbols, from, to);
+                Arrays.sort(sorted);
+                int k = random.nextInt(sorted.length);
+                assertEquals(sorted[k], matrix.quantile(from, to, k), "quantile " + from + " " + to + " " + k);
+                int lower = random.nextInt(220);
+                int upper = random.nextInt(300);
+                long expected = Arrays.stream(sorted).filter(v -> v >= lower && v < upper).count();
+                assertEquals(expected, matrix.rangeFrequency(from, to, lower, upper), "frequency " + lower + " " + upper);
+            }
+        }
+    }
+
+    @Test
+    void testNextPreviousCount() {
+        Random random = new Random(0);
+        // long runs of equal bits, so whole blocks and super blocks are skipped
+        long[] array = new long[5000];
+        for (int i = 0; i < array.length; ) {
+            int kind = random.nextInt(3);
+            int run = 1 + random.nextInt(1100);
+            for (int end = Math.min(array.length, i + run); i < end; i++) {
+                array[i] = kind == 0 ? 0 : kind == 1 ? -1 : random.nextLong();
+            }
+        }
+        MemorySegment segment = MemorySegment.ofArray(array);
+        long bitSize = array.length * 64L - 13;
+        array[array.length - 1] &= -1L >>> 13;
+        // the efficient bit vector skips blocks, the interleaved one uses the default implementations
+        checkNextPreviousCount(random, array, EfficientBitVector.createEfficientBitVector(Arena.ofAuto(), segment, bitSize));
+        checkNextPreviousCount(random, array, InterleavedBitVector.createInterleavedBitVector(Arena.ofAuto(), segment, bitSize));
+    }
+
+    private static void checkNextPreviousCount(Random random, long[] array, BitVector vector) {
+        long bitSize = vector.bitSize();
+        List<Long> ones = new ArrayList<>();
+        vector.forEachSetBit(ones::add);
+        List<Long> iterated = new ArrayList<>();
+        vector.setBitIterator().forEachRemaining((long l) -> iterated.add(l));
+        List<Long> expected = new ArrayList<>();
+        for (long i = 0; i < bitSize; i++) {
+            if ((array[(int) (i / 64)] >>> i & 1) == 1) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected, ones);
+        assertEquals(expected, iterated);
+        for (int q = 0; q < 1000; q++) {
+            long from = random.nextLong(bitSize);
+            long to = from + random.nextLong(bitSize - from + 1);
+            long count = 0;
+            for (long i = from; i < to; i++) {
+                count += array[(int) (i / 64)] >>> i & 1;
+            }
+            assertEquals(count, vector.count(from, to, 1), "count " + from + " " + to);
+            assertEquals(to - from - count, vector.count(from, to, 0), "count " + from + " " + to);
+            for (int bit = 0; bit <= 1; bit++) {
+                long next = from;
+                while (next < bitSize && (array[(int) (next / 64)] >>> next & 1) != bit) {
+                    next++;
+                }
+                assertEquals(next == bitSize ? -1 : next, vector.nextBit(from, bit), "next " + bit + " " + from);
+                long previous = from;
+                while (previous >= 0 && (array[(int) (previous / 64)] >>> previous & 1) != bit) {
+                    previous--;
+                }
+                assertEquals(previous, vector.previousBit(from, bit), "previous " + bit + " " + from);
+            }
+        }
+    }
+
+    @Test
+    void testOperations() {
+        Random random = new Random(0);
+        int words = 133713;
+        long bitSize = words * 64L - 13;
+        long[] left = LongStream.generate(() -> random.nextLong() & random.nextLong()).limit(words).toArray();
+        long[] right = LongStream.generate(random::nextLong).limit(words).toArray();
+        left[words - 1] &= -1L >>> 13;
+        right[words - 1] &= -1L >>> 13;
+        Arena arena = Arena.ofAuto();
+        BitVector leftVector = EfficientBitVector.createEfficientBitVector(arena, MemorySegment.ofArray(left), bitSize);
+        // the right operand is not an efficient bit vector, so its bits are copied first
+        BitVector rightVector = InterleavedBitVector.createInterleavedBitVector(arena, MemorySegment.ofArray(right), bitSize);
+        checkOperation(BitVectorOperations.and(arena, leftVector, rightVector), left, right, bitSize, (l, r) -> l & r);
+        checkOperation(BitVectorOperations.or(arena, leftVector, rightVector), left, right, bitSize, (l, r) -> l | r);
+        checkOperation(BitVectorOperations.xor(arena, leftVector, rightVector), left, right, bitSize, (l, r) -> l ^ r);
+        checkOperation(BitVectorOperations.andNot(arena, leftVector, rightVector), left, right, bitSize, (l, r) -> l & ~r);
+        long cardinality = 0;
+        for (int i = 0; i < words; i++) {
+            cardinality += Long.bitCount(left[i] & right[i]);
+        }
+        assertEquals(cardinality, BitVectorOperations.andCardinality(leftVector, rightVector));
+        // bits beyond bitSize must not be counted, even if the segment of the left bit vector contains some
+        left[words - 1] |= -1L << (64 - 13);
+        BitVector rightEfficient = EfficientBitVector.createEfficientBitVector(arena, MemorySegment.ofArray(right), bitSize);
+        right[words - 1] |= -1L << (64 - 13);
+        assertEquals(cardinality, BitVectorOperations.andCardinality(leftVector, rightEfficient));
+    }
+
+    private static void checkOperation(BitVector result, long[] left, long[] right, long bitSize, LongBinaryOperator operator) {
+        long[] expected = new long[left.length];
+        for (int i = 0; i < left.length; i++) {
+            expected[i] = operator.applyAsLong(left[i], right[i]);
+        }
+        expected[expected.length - 1] &= (1L << bitSize) - 1;
+        EfficientBitVector actual = assertInstanceOf(EfficientBitVector.class, result);
+        EfficientBitVector reference = EfficientBitVector.createEfficientBitVector(Arena.ofAuto(), MemorySegment.ofArray(expected), bitSize);
+        assertEquals(-1, reference.segment().mismatch(actual.segment()));
+        assertEquals(-1, reference.rankLookup().mismatch(actual.rankLookup()));
+        assertEquals(-1, reference.selectLookup().mismatch(actual.selectLookup()));
+    }
+
+    @Test
+    void testKernelsAgree() {
+        Random random = new Random(0);
+        MemorySegment data = MemorySegment.ofArray(LongStream.generate(random::nextLong).limit(1000).toArray());
+        List<BitCountKernel> kernels = List.of(
+                new BitCountKernel.Scalar(),
+                new BitCountKernel.Vectorized(ByteVector.SPECIES_128),
+                new BitCountKernel.Vectorized(ByteVector.SPECIES_256),
+                new BitCountKernel.Vectorized(ByteVector.SPECIES_512)
+        );
+        for (int i = 0; i < 10_000; i++) {
+            long from = random.nextLong(data.byteSize());
+            // bit counts may reach beyond the segment
+            long to = from + random.nextInt(100);
+            long sumTo = Math.min(data.byteSize(), from + random.nextInt(256));
+            for (BitCountKernel kernel : kernels) {
+                assertEquals(kernels.getFirst().bitCount(data, from, to), kernel.bitCount(data, from, to), kernel.name());
+                assertEquals(kernels.getFirst().sumBytes(data, from, sumTo), kernel.sumBytes(data, from, sumTo), kernel.name());
+            }
+        }
+    }
+
+    @Test
+    void testShardedMatchesEfficient(@TempDir Path directory) throws IOException {
+        Random random = new Random(0);
+        // the last shard is partial, but ends at a word boundary
+        long bitSize = 5 * EfficientBitVector.RANK_SUPER_BLOCK_SIZE + 1280;
+        long[] words = random.longs(Math.ceilDiv(bitSize, Long.SIZE)).toArray();
+        MemorySegment segment = MemorySegment.ofArray(words);
+        EfficientBitVector expected = EfficientBitVector.createEfficientBitVector(Arena.ofAuto(), segment, bitSize);
+        ShardedBitVector sharded = ShardedBitVector.createShardedBitVector(
+                Arena.ofAuto(), segment, bitSize, 2 * EfficientBitVector.RANK_SUPER_BLOCK_SIZE, 4
+        );
+        assertEquals(3, sharded.shardCount());
+        sharded.write(directory);
+        ShardedBitVector mapped = ShardedBitVector.map(directory, Arena.ofAuto());
+        long ones = expected.count(0, bitSize, 1);
+        for (BitVector actual : List.of(sharded, mapped)) {
+            assertEquals(bitSize, actual.bitSize());
+            for (int i = 0; i < 10_000; i++) {
+                long index = random.nextLong(bitSize);
+                assertEquals(expected.access(index), actual.access(index), "access at " + index);
+                assertEquals(expected.rank(index, 1), actual.rank(index, 1), "rank1 at " + index);
+                assertEquals(expected.rank(index, 0), actual.rank(index, 0), "rank0 at " + index);
+                long rank = 1 + random.nextLong(ones);
+                assertEquals(expected.select(rank, 1), actual.select(rank, 1), "select1 of " + rank);
+                long zeroRank = 1 + random.nextLong(bitSize - ones);
+                assertEquals(expected.select(zeroRank, 0), actual.select(zeroRank, 0), "select0 of " + zeroRank);
+            }
+            assertEquals(-1, actual.select(ones + 1, 1));
+            assertEquals(ones, actual.count(0, bitSize, 1));
+            assertEquals(expected.count(bitSize / 2, bitSize, 0), actual.count(bitSize / 2, bitSize, 0));
+        }
+    }
+
+    @Test
+    void testQueryServerRoundTrip(@TempDir Path directory) throws Exception {
+        Random random = new Random(0);
+        long bitSize = 3 * EfficientBitVector.RANK_SUPER_BLOCK_SIZE - 13;
+        long[] words = random.longs(Math.ceilDiv(bitSize, Long.SIZE)).toArray();
+        words[words.length - 1] &= (1L << bitSize) - 1;
+        EfficientBitVector vector = EfficientBitVector.createEfficientBitVector(Arena.ofAuto(), MemorySegment.ofArray(words), bitSize);
+        long ones = vector.count(0, bitSize, 1);
+        Path socket = directory.resolve("query.sock");
+        Thread server = Thread.ofPlatform().start(() -> {
+            try {
+                new QueryServer(vector).serve(socket);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            while (!Files.exists(socket)) {
+                assertTrue(server.isAlive(), "server failed to start");
+                Thread.sleep(10);
+            }
+            try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+                ByteBuffer greeting = QueryProtocol.allocate(QueryProtocol.GREETING_SIZE);
+                assertTrue(QueryProtocol.readFully(channel, greeting, QueryProtocol.GREETING_SIZE));
+                assertEquals(QueryProtocol.MAGIC, greeting.getInt(0));
+                assertEquals(QueryProtocol.VERSION, greeting.getInt(Integer.BYTES));
+                assertEquals(bitSize, greeting.getLong(2 * Integer.BYTES));
+                assertEquals(ones, greeting.getLong(2 * Integer.BYTES + Long.BYTES));
+                // all frames are sent before the first response is read
+                int n = 1000;
+                byte[][] opcodes = new byte[3][n];
+                long[][] arguments = new long[3][n];
+                for (int frame = 0; frame < opcodes.length; frame++) {
+                    ByteBuffer request = QueryProtocol.allocate(QueryProtocol.HEADER_SIZE + n * (Long.BYTES + Byte.BYTES));
+                    request.putInt(0, n);
+                    for (int i = 0; i < n; i++) {
+                        // runs of equal opcodes, so the server executes some of them as batch
+                        byte opcode = (byte) (i / 100 % 3 == 0 ? Instructions.ACCESS : Instructions.SELECT_0 + random.nextInt(2));
+                        opcode = i % 7 == 0 ? Instructions.rank(random.nextInt(2)) : opcode;
+                        long argument = opcode == Instructions.SELECT_1 ? 1 + random.nextLong(ones + 1)
+                                : opcode == Instructions.SELECT_0 ? 1 + random.nextLong(bitSize - ones + 1)
+                                : random.nextLong(bitSize);
+                        opcodes[frame][i] = opcode;
+                        arguments[frame][i] = argument;
+                        request.putLong(QueryProtocol.HEADER_SIZE + i * Long.BYTES, argument);
+                        request.put(QueryProtocol.HEADER_SIZE + n * Long.BYTES + i, opcode);
+                    }
+                    QueryProtocol.writeFully(channel, request);
+                }
+                ByteBuffer response = QueryProtocol.allocate(QueryProtocol.MAX_RESPONSE_SIZE);
+                for (int frame = 0; frame < opcodes.length; frame++) {
+                    response.clear();
+                    assertTrue(QueryProtocol.readFully(channel, response, QueryProtocol.HEADER_SIZE));
+                    assertEquals(n, response.getInt(0));
+                    assertTrue(QueryProtocol.readFully(channel, response, n * Long.BYTES));
+                    for (int i = 0; i < n; i++) {
+                        long argument = arguments[frame][i];
+                        long expected = switch (opcodes[frame][i]) {
+                            case Instructions.ACCESS -> vector.access(argument);
+                            case Instructions.RANK_0 -> vector.rank(argument, 0);
+                            case Instructions.RANK_1 -> vector.rank(argument, 1);
+                            case Instructions.SELECT_0 -> vector.select(argument, 0);
+                            default -> vector.select(argument, 1);
+                        };
+                        assertEquals(expected, response.getLong(QueryProtocol.HEADER_SIZE + i * Long.BYTES), "frame " + frame + " query " + i);
+                    }
+                }
+                // an unknown opcode is answered with an error, and the connection is closed
+                ByteBuffer invalid = QueryProtocol.allocate(QueryProtocol.HEADER_SIZE + Long.BYTES + Byte.BYTES);
+                invalid.putInt(0, 1).put(QueryProtocol.HEADER_SIZE + Long.BYTES, (byte) 7);
+                QueryProtocol.writeFully(channel, invalid);
+                response.clear();
+                assertTrue(QueryProtocol.readFully(channel, response, QueryProtocol.HEADER_SIZE));
+                assertEquals(QueryProtocol.ERROR_OPCODE, response.getInt(0));
+                response.clear();
+                assertFalse(QueryProtocol.readFully(channel, response, QueryProtocol.HEADER_SIZE));
+            }
+            // pipelined frames from multiple connections
+            LoadGenerator.main(new String[]{socket.toString(), "2", "20", "100", "4"});
+        } finally {
+            // accepting is interruptible, which stops the server
+            server.interrupt();
+            server.join();
+        }
+        assertFalse(Files.exists(socket));
+    }
+
+    @Test
+    void testMeteredStats() {
+        long bitSize = 1_000_000;
+        MemorySegment segment = MemorySegment.ofArray(new Random(0).longs(Math.ceilDiv(bitSize, Long.SIZE)).toArray());
+        EfficientBitVector efficient = EfficientBitVector.createEfficientBitVector(Arena.ofAuto(), segment, bitSize);
+        MeteredBitVector metered = new MeteredBitVector(efficient);
+        BitVectorStats stats = metered.stats();
+        assertEquals(efficient.memoryUsage(), stats.totalBytes());
+        assertEquals(List.of("segment", "rankLookup", "selectLookup"),
+                stats.components().stream().map(BitVectorStats.Component::name).toList());
+        assertTrue(stats.overheadBitsPerBit() > 0);
+        metered.rank(10, 0);
+        metered.rank(10, 1);
+        metered.rankBatch(new long[]{1, 2, 3}, 1, new long[3]);
+        metered.select(1, 1);
+        metered.access(5);
+        assertEquals(1, metered.rankCount(0));
+        assertEquals(4, metered.rankCount(1));
+        assertEquals(0, metered.selectCount(0));
+        assertEquals(1, metered.selectCount(1));
+        assertEquals(1, metered.accessCount());
+        metered.resetCounters();
+        assertEquals(0, metered.rankCount(1));
+    }
+
+    /**
+     * Checks access, rank and select of the bit vector at every index against the bits of the given words,
+     * and the batch queries against the single ones.
+     */
+    private static void checkRankSelect(BitVector vector, long[] words, long bitSize) {
+        assertEquals(bitSize, vector.bitSize());
+        long ones = 0;
+        for (long i = 0; i < bitSize; i++) {
+            int expected = (int) (words[(int) (i / 64)] >>> i) & 1;
+            assertEquals(expected, vector.access(i), "access " + i);
+            assertEquals(ones, vector.rank(i, 1), "rank 1 " + i);
+            assertEquals(i - ones, vector.rank(i, 0), "rank 0 " + i);
+            if (expected == 1) {
+                ones++;
+                assertEquals(i, vector.select(ones, 1), "select 1 " + ones);
+            } else {
+                assertEquals(i, vector.select(i + 1 - ones, 0), "select 0 " + (i + 1 - ones));
+            }
+        }
+        assertEquals(-1, vector.select(0, 1));
+        assertEquals(-1, vector.select(ones + 1, 1));
+        assertEquals(-1, vector.select(bitSize - ones + 1, 0));
+        Random random = new Random(0);
+        long[] indices = random.longs(1000, 0, bitSize).toArray();
+        long[] out = new long[indices.length];
+        vector.accessBatch(indices, out);
+        for (int i = 0; i < indices.length; i++) {
+            assertEquals(vector.access(indices[i]), out[i], "batch access " + indices[i]);
+        }
+        for (int bit = 0; bit <= 1; bit++) {
+            long occurrences = bit == 1 ? ones : bitSize - ones;
+            // includes ranks without an occurrence
+            long[] ranks = random.longs(indices.length, 1, occurrences + 2).toArray();
+            vector.rankBatch(indices, bit, out);
+            for (int i = 0; i < indices.length; i++) {
+                assertEquals(vector.rank(indices[i], bit), out[i], "batch rank " + bit + " " + indices[i]);
+            }
+            vector.selectBatch(ranks, bit, out);
+            for (int i = 0; i < ranks.length; i++) {
+                assertEquals(vector.select(ranks[i], bit), out[i], "batch select " + bit + " " + ranks[i]);
+            }
+        }
+    }
+
     private static void checkSelect(long ones, BitVector vector, int i) {
         assertEquals(i, vector.select(ones, 1));
     }
@@ -0,0 +1,58 @@
+package de.sirywell.bitvectors.jfr;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void testBucketBoundaries() {
+        assertAll(
+                () -> assertEquals(0, LatencyHistogram.bucket(0)),
+                () -> assertEquals(7, LatencyHistogram.bucket(7)),
+                () -> assertEquals(8, LatencyHistogram.bucket(8)),
+                () -> assertEquals(15, LatencyHistogram.bucket(15)),
+                () -> assertEquals(16, LatencyHistogram.bucket(16)),
+                () -> assertEquals(16, LatencyHistogram.bucket(17)),
+                () -> assertEquals(17, LatencyHistogram.bucket(18)),
+                () -> assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE)),
+                () -> assertEquals(16, LatencyHistogram.lowerBound(16)),
+                () -> assertEquals(18, LatencyHistogram.upperBound(16)),
+                () -> assertEquals(15L << 59, LatencyHistogram.lowerBound(LatencyHistogram.BUCKETS - 1)),
+                () -> assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.BUCKETS - 1))
+        );
+        // the buckets are contiguous and each bound falls into its own bucket
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            long lower = LatencyHistogram.lowerBound(bucket);
+            long upper = LatencyHistogram.upperBound(bucket);
+            assertTrue(lower < upper, "bucket " + bucket);
+            assertEquals(bucket, LatencyHistogram.bucket(lower), "lower bound of bucket " + bucket);
+            assertEquals(bucket, LatencyHistogram.bucket(upper - 1), "upper bound of bucket " + bucket);
+            if (bucket >= 8) {
+                // at most 12.5% relative error
+                assertTrue(upper - lower <= lower / 8, "width of bucket " + bucket);
+            }
+        }
+    }
+
+    @Test
+    void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("test");
+        assertEquals(0, histogram.samples());
+        assertEquals(0, histogram.percentile(0.5));
+        histogram.record(5, 90);
+        histogram.record(1000, 9);
+        histogram.record(100_000, 1);
+        // negative latencies, e.g. from a clock going backwards, count as 0
+        histogram.record(-3, 0);
+        assertEquals(100, histogram.samples());
+        assertEquals(6, histogram.percentile(0.5));
+        assertEquals(6, histogram.percentile(0.9));
+        assertEquals(1024, histogram.percentile(0.99));
+        assertEquals(106_496, histogram.percentile(0.999));
+        assertEquals(106_496, histogram.percentile(1));
+        histogram.record(-3, 100);
+        assertEquals(1, histogram.percentile(0.5));
+    }
+}